@@ -0,0 +1,54 @@
+package benchmarks;
+
+import data.Tensor;
+import layers.Context;
+import layers.Convolution;
+import layers.ConvolutionEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Forward and backward pass of a convolution layer shaped like the first layer of the default network
+ */
+@State(Scope.Thread)
+public class ConvolutionBenchmark {
+
+    @Param({"1", "32"})
+    public int batch;
+
+    @Param({"DIRECT", "IM2COL"})
+    public ConvolutionEngine engine;
+
+    private Convolution layer;
+    private Context context;
+    private Tensor input;
+    private Tensor error;
+
+    @Setup
+    public void setup() {
+        layer = new Convolution(3, 1, 1, SyntheticData.ROWS, SyntheticData.COLS, 123, 13, 0.41, engine);
+        layer.set_index(0);
+        context = new Context(List.of(layer));
+
+        input = SyntheticData.tensor(batch, 1, SyntheticData.ROWS, SyntheticData.COLS, 1);
+        error = SyntheticData.tensor(batch, layer.getOutputLength(), layer.getOutputRows(), layer.getOutputCols(), 2);
+
+        // Cache an input in the context for the backward pass
+        layer.convolutionForwardPass(input, context);
+    }
+
+    @Benchmark
+    public Tensor forward() {
+        return layer.convolutionForwardPass(input, context);
+    }
+
+    @Benchmark
+    public void backward() {
+        layer.backPropagation(error, context);
+    }
+}
@@ -0,0 +1,32 @@
+package benchmarks;
+
+import data.Image;
+import helpers.DataLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Loading and normalizing a CSV file the size of the UCI training fold
+ */
+@State(Scope.Benchmark)
+public class DataLoaderBenchmark {
+
+    private static final int IMAGES = 3823;
+
+    private String path;
+
+    @Setup
+    public void setup() throws IOException {
+        path = SyntheticData.csv(IMAGES, 1).toString();
+    }
+
+    @Benchmark
+    public List<Image> readData() {
+        return new DataLoader().readData(path);
+    }
+}
@@ -0,0 +1,50 @@
+package benchmarks;
+
+import data.Tensor;
+import layers.Context;
+import layers.FullyConnected;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Forward and backward pass of a fully connected layer shaped like the last layer of the default network
+ */
+@State(Scope.Thread)
+public class FullyConnectedBenchmark {
+
+    @Param({"1", "32"})
+    public int batch;
+
+    private FullyConnected layer;
+    private Context context;
+    private Tensor input;
+    private Tensor error;
+
+    @Setup
+    public void setup() {
+        layer = new FullyConnected(13 * 5 * 5, SyntheticData.CLASSES, 123, 0.41);
+        layer.set_index(0);
+        context = new Context(List.of(layer));
+
+        input = SyntheticData.tensor(batch, 13 * 5 * 5, 1, 1, 1);
+        error = SyntheticData.tensor(batch, SyntheticData.CLASSES, 1, 1, 2);
+
+        // Cache the input and dot product in the context for the backward pass
+        layer.fullyConnectedForwardPass(input, context);
+    }
+
+    @Benchmark
+    public Tensor forward() {
+        return layer.fullyConnectedForwardPass(input, context);
+    }
+
+    @Benchmark
+    public void backward() {
+        layer.backPropagation(error, context);
+    }
+}
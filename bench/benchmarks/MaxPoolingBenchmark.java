@@ -0,0 +1,58 @@
+package benchmarks;
+
+import data.Tensor;
+import layers.Context;
+import layers.MaxPooling;
+import layers.PoolingMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Forward and backward pass of a pool layer shaped like the second layer of the default network, with the
+ * unrolled 2x2 window and the general window
+ */
+@State(Scope.Thread)
+public class MaxPoolingBenchmark {
+
+    @Param({"1", "32"})
+    public int batch;
+
+    @Param({"2", "3"})
+    public int windowSize;
+
+    @Param({"MAX", "AVERAGE"})
+    public PoolingMode mode;
+
+    private MaxPooling layer;
+    private Context context;
+    private Tensor input;
+    private Tensor error;
+
+    @Setup
+    public void setup() {
+        layer = new MaxPooling(1, windowSize, 13, 6, 6, mode);
+        layer.set_index(0);
+        context = new Context(List.of(layer));
+
+        input = SyntheticData.tensor(batch, 13, 6, 6, 1);
+        error = SyntheticData.tensor(batch, layer.getOutputLength(), layer.getOutputRows(), layer.getOutputCols(), 2);
+
+        // Cache the max locations in the context for the backward pass
+        layer.maxPoolForwardPass(input, context);
+    }
+
+    @Benchmark
+    public Tensor forward() {
+        return layer.maxPoolForwardPass(input, context);
+    }
+
+    @Benchmark
+    public void backward() {
+        layer.backPropagation(error, context);
+    }
+}
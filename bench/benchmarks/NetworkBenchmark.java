@@ -0,0 +1,66 @@
+package benchmarks;
+
+import data.Image;
+import network.NetworkBuilder;
+import network.NeuralNetwork;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+
+/**
+ * End-to-end guess, test and training epoch of the default network on synthetic data
+ * the size of the UCI training fold
+ */
+@State(Scope.Thread)
+public class NetworkBenchmark {
+
+    private static final int IMAGES = 3823;
+
+    @Param({"1", "32"})
+    public int batchSize;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private NeuralNetwork network;
+    private List<Image> images;
+    private int epoch;
+
+    @Setup
+    public void setup() {
+        NetworkBuilder builder = new NetworkBuilder(SyntheticData.ROWS, SyntheticData.COLS, 200);
+        builder.addConvolutionLayer(13, 3, 1, 0.41, 123);
+        builder.addMaxPoolLayer(2, 1);
+        builder.addFullyConnectedLayer(SyntheticData.CLASSES, 0.41, 123);
+        builder.setBatchSize(batchSize);
+        builder.setThreads(threads);
+
+        network = builder.build();
+        images = SyntheticData.images(IMAGES, 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        network.close();
+    }
+
+    @Benchmark
+    public int guess() {
+        return network.guess(images.get(0));
+    }
+
+    @Benchmark
+    public float test() {
+        return network.test(images);
+    }
+
+    @Benchmark
+    public double trainEpoch() {
+        return network.train(epoch++, images);
+    }
+}
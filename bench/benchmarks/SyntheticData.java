@@ -0,0 +1,94 @@
+package benchmarks;
+
+import data.Image;
+import data.Tensor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates random 8x8 digit data shaped like the UCI optical digits set
+ */
+public class SyntheticData {
+
+    public static final int ROWS = 8;
+    public static final int COLS = 8;
+    public static final int MAX_PIXEL = 16;
+    public static final int CLASSES = 10;
+
+    /**
+     * Creates random images with pixel counts between 0 and 16
+     * @param count the number of images
+     * @param seed the seed of the generator
+     * @return the images
+     */
+    public static List<Image> images(int count, long seed) {
+        Random random = new Random(seed);
+        List<Image> images = new ArrayList<>(count);
+
+        for (int n = 0; n < count; n++) {
+            double[][] data = new double[ROWS][COLS];
+            for (int r = 0; r < ROWS; r++) {
+                for (int c = 0; c < COLS; c++) {
+                    data[r][c] = random.nextInt(MAX_PIXEL + 1);
+                }
+            }
+            images.add(new Image(data, random.nextInt(CLASSES)));
+        }
+
+        return images;
+    }
+
+    /**
+     * Creates a tensor filled with values from a standard normal distribution
+     * @param batch the number of samples
+     * @param length the number of feature maps per sample
+     * @param rows the number of rows per feature map
+     * @param cols the number of columns per feature map
+     * @param seed the seed of the generator
+     * @return the tensor
+     */
+    public static Tensor tensor(int batch, int length, int rows, int cols, long seed) {
+        Random random = new Random(seed);
+        Tensor tensor = new Tensor(batch, length, rows, cols);
+        double[] data = tensor.getData();
+
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextGaussian();
+        }
+
+        return tensor;
+    }
+
+    /**
+     * Writes random images to a temporary file in the CSV format of the UCI data set
+     * @param count the number of images
+     * @param seed the seed of the generator
+     * @return the path of the file, deleted when the JVM exits
+     */
+    public static Path csv(int count, long seed) throws IOException {
+        Path path = Files.createTempFile("digits", ".csv");
+        path.toFile().deleteOnExit();
+
+        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+            for (Image image : images(count, seed)) {
+                StringBuilder line = new StringBuilder();
+                for (double[] row : image.getData()) {
+                    for (double value : row) {
+                        line.append((int) value).append(',');
+                    }
+                }
+                line.append(image.getLabel());
+                writer.write(line.toString());
+                writer.newLine();
+            }
+        }
+
+        return path;
+    }
+}
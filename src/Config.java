@@ -1,3 +1,5 @@
+import layers.ConvolutionEngine;
+
 public class Config {
     public static double LEARNING_RATE = 0.41;
     public static int INPUT_ROWS = 8;
@@ -11,4 +13,29 @@ public class Config {
     public static int OUTPUT_LENGTH = 10;
     public static int EPOCHS = 200;
     public static int WAIT = 15;
+    public static int BATCH_SIZE = 1;
+    public static int THREADS = 1;
+    public static int PIPELINE_BATCHES = 64;
+    public static int FOLDS = 5;
+    public static int PARALLEL_TRAINING = Runtime.getRuntime().availableProcessors();
+    public static int SEARCH_SAMPLES = 27;
+    public static int SEARCH_MIN_EPOCHS = 2;
+    public static int SEARCH_REDUCTION = 3;
+    public static boolean AUGMENT = true;
+    public static double AUGMENT_DEGREES = 10;
+    public static double AUGMENT_SCALE = 0.1;
+    public static double AUGMENT_SHIFT = 1;
+    public static double AUGMENT_NOISE = 0.05;
+    public static ConvolutionEngine CONVOLUTION_ENGINE = ConvolutionEngine.DIRECT;
+    public static boolean FUSE_CONVOLUTION_POOLING = true;
+    public static String CHECKPOINT_DIR = "checkpoints";
+    public static int CHECKPOINT_INTERVAL = 10;
+    public static boolean RESUME = true;
+    public static boolean METRICS = false;
+    public static String METRICS_DIR = "metrics";
+    public static int SERVER_PORT = 8080;
+    public static int SERVER_MAX_BATCH = 64;
+    public static long SERVER_MAX_WAIT_MICROS = 2000;
+    public static int PREDICTION_CACHE = 4096;
+    public static int QUANTIZE_CALIBRATION = 500;
 }
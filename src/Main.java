@@ -1,77 +1,437 @@
+import helpers.AffineAugmentation;
+import helpers.Augmentation;
+import helpers.BatchPipeline;
 import helpers.DataLoader;
+import helpers.NoiseAugmentation;
+import helpers.Normalization;
 import data.Image;
+import metrics.CsvMetricsSink;
+import metrics.JmxMetricsSink;
+import metrics.JsonLinesMetricsSink;
+import metrics.TrainingMetrics;
 import network.NetworkBuilder;
+import network.CheckpointWriter;
+import network.Float32Network;
 import network.NeuralNetwork;
+import network.QuantizationReport;
+import network.QuantizedNetwork;
+import network.Snapshot;
+import search.Hyperparameters;
+import search.SearchSpace;
+import search.SuccessiveHalving;
+import search.Trial;
+import server.InferenceServer;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static java.util.Collections.shuffle;
 
 public class Main {
 
-    public void twoFoldTest(String foldOne, String foldTwo) {
-        List<Image> imagesTrain = new DataLoader().readData(foldOne, true);
-        List<Image> imagesTest = new DataLoader().readData(foldTwo, false);
+    private static final String TRAIN_PATH = "src/data/train.csv";
+    private static final String TEST_PATH = "src/data/test.csv";
+
+    /**
+     * Builds the network described by the config
+     * @return the untrained network
+     */
+    private NeuralNetwork buildNetwork() {
+        return buildNetwork(Hyperparameters.NONE);
+    }
+
+    /**
+     * Builds the network described by the config, with the hyperparameters of a search in place of the
+     * config's values: learningRate, numFilters, filterSize and scaleFactor
+     * @param hyperparameters the values to use, where the search sets them
+     * @return the untrained network
+     */
+    private NeuralNetwork buildNetwork(Hyperparameters hyperparameters) {
+        double learningRate = hyperparameters.get("learningRate", Config.LEARNING_RATE);
+        int numFilters = hyperparameters.getInt("numFilters", Config.NUM_FILTERS);
+        int filterSize = hyperparameters.getInt("filterSize", Config.FILTER_SIZE);
+        int scaleFactor = hyperparameters.getInt("scaleFactor", Config.SCALE_FACTOR);
+
+        NetworkBuilder builder = new NetworkBuilder(Config.INPUT_ROWS, Config.INPUT_COLS, scaleFactor);
+        builder.setFuseConvolutionPooling(Config.FUSE_CONVOLUTION_POOLING);
+        builder.addConvolutionLayer(numFilters, filterSize, Config.STEP_SIZE, learningRate, Config.SEED, Config.CONVOLUTION_ENGINE);
+        builder.addMaxPoolLayer(Config.WINDOW_SIZE, Config.STEP_SIZE);
+        builder.addFullyConnectedLayer(Config.OUTPUT_LENGTH, learningRate, Config.SEED);
+        builder.setBatchSize(Config.BATCH_SIZE);
+        builder.setThreads(Config.THREADS);
+
+        return builder.build();
+    }
+
+    /**
+     * Creates the augmentation applied to the training images as they are fed to the network
+     * @return the augmentation, or null if augmentation is switched off in the config
+     */
+    private Augmentation createAugmentation() {
+        if (!Config.AUGMENT) {
+            return null;
+        }
+        return new AffineAugmentation(Config.AUGMENT_DEGREES, Config.AUGMENT_SCALE, Config.AUGMENT_SHIFT)
+                .andThen(new NoiseAugmentation(Config.AUGMENT_NOISE));
+    }
+
+    /**
+     * Trains on one fold and tests on the other, keeping the weights with the best accuracy.
+     * A checkpoint of the latest weights is written in the background every few epochs and training
+     * resumes from it if it exists, so a run that stops can carry on where it left off.
+     * With metrics switched on in the config, the metrics of every epoch are written to CSV and JSON-lines
+     * files and exposed over JMX.
+     * @param foldOne the path to the training data
+     * @param foldTwo the path to the test data
+     * @param name the name of the run, which names its checkpoint and metrics files
+     */
+    public void twoFoldTest(String foldOne, String foldTwo, String name) throws IOException {
+        // The training images are augmented afresh every epoch by the pipeline, and their statistics
+        // normalize the test images too, as they will any image the saved network is served
+        DataLoader loader = new DataLoader();
+        List<Image> imagesTrain = loader.readData(foldOne);
+        Normalization normalization = loader.getNormalization();
+        List<Image> imagesTest = normalization.apply(loader.readRawData(List.of(foldTwo)));
 
         System.out.println("Images Train size: " + imagesTrain.size());
         System.out.println("Images Test size: " + imagesTest.size());
 
-        NetworkBuilder builder = new NetworkBuilder(Config.INPUT_ROWS, Config.INPUT_COLS, Config.SCALE_FACTOR);
-        builder.addConvolutionLayer(Config.NUM_FILTERS, Config.FILTER_SIZE, Config.STEP_SIZE, Config.LEARNING_RATE, Config.SEED);
-        builder.addMaxPoolLayer(Config.WINDOW_SIZE, Config.STEP_SIZE);
-        builder.addFullyConnectedLayer(Config.OUTPUT_LENGTH, Config.LEARNING_RATE, Config.SEED);
+        String checkpointPath = Path.of(Config.CHECKPOINT_DIR, name + ".ucn").toString();
+        String bestPath = Path.of(Config.CHECKPOINT_DIR, name + "-best.ucn").toString();
+        Files.createDirectories(Path.of(Config.CHECKPOINT_DIR));
+
+        NeuralNetwork net;
+        if (Config.RESUME && Files.exists(Path.of(checkpointPath))) {
+            net = NeuralNetwork.load(checkpointPath);
+            System.out.println("Resuming from " + checkpointPath + " after " + net.getEpochs() + " epochs");
+        } else {
+            net = buildNetwork();
+        }
+
+        try (net) {
+            net.setNormalization(normalization);
+            float rate = net.test(imagesTest);
+            System.out.println("Pre training success rate: " + rate);
+
+            // The best weights so far are copied whenever the accuracy improves; a resumed run starts from the saved best
+            Snapshot best = net.snapshot();
+            double bestAccuracy = 0;
+            if (Config.RESUME && net.getEpochs() > 0 && Files.exists(Path.of(bestPath))) {
+                try (NeuralNetwork saved = NeuralNetwork.load(bestPath)) {
+                    best = saved.snapshot();
+                    bestAccuracy = saved.test(imagesTest);
+                }
+            }
+
+            int count = 0;
+            boolean bestWritten = true;
+
+            // Shuffled batches are prepared on a background thread while the network trains on the previous one
+            try (BatchPipeline pipeline = new BatchPipeline(imagesTrain, Config.BATCH_SIZE * Config.PIPELINE_BATCHES, Config.SEED, createAugmentation());
+                 CheckpointWriter writer = new CheckpointWriter();
+                 TrainingMetrics metrics = Config.METRICS ? createMetrics(name) : null) {
+                net.setMetrics(metrics);
+
+                // Early stopping helps to prevent over-fitting by stopping the training
+                // process when the validation loss stops improving.
+                for(int epochIndex = net.getEpochs(); epochIndex < Config.EPOCHS; epochIndex++){
+                    double averageCost = net.train(epochIndex, pipeline);
+                    rate = net.test(imagesTest);
+                    if (metrics != null) {
+                        metrics.recordAccuracy(rate);
+                    }
+
+                    if (rate > bestAccuracy) {
+                        bestAccuracy = rate;
+                        best = net.snapshot();
+                        bestWritten = false;
+                        count = 0;
+                    } else {
+                        count++;
+                        if (count == Config.WAIT) break;
+                    }
+
+                    // Write the latest and, if it changed, the best weights without waiting for the disk
+                    if ((epochIndex + 1) % Config.CHECKPOINT_INTERVAL == 0) {
+                        writer.write(net.snapshot(), checkpointPath);
+                        if (!bestWritten) {
+                            writer.write(best, bestPath);
+                            bestWritten = true;
+                        }
+                    }
+
+                    // Round average cost to two decimal places
+                    DecimalFormat df = new DecimalFormat("#.###");
+
+                    System.out.println("epoch: " + epochIndex + ", cost: " + df.format(averageCost) + ", accuracy: " + df.format(rate));
+                }
+
+                writer.write(net.snapshot(), checkpointPath);
+                writer.write(best, bestPath);
+                net.setMetrics(null);
+            }
+
+            // Carry on with the best weights rather than the latest ones
+            net.restore(best);
+            System.out.println("Best accuracy: " + net.test(imagesTest) + " after " + best.getEpochs() + " epochs"
+                    + ", saved to " + bestPath);
+        }
+    }
+
+    /**
+     * Creates a metrics collector that writes to CSV and JSON-lines files and registers an MBean
+     * @param name the name of the run
+     * @return the collector
+     */
+    private TrainingMetrics createMetrics(String name) throws IOException {
+        Files.createDirectories(Path.of(Config.METRICS_DIR));
+        return new TrainingMetrics(
+                new CsvMetricsSink(Path.of(Config.METRICS_DIR, name + ".csv").toString()),
+                new JsonLinesMetricsSink(Path.of(Config.METRICS_DIR, name + ".jsonl").toString()),
+                JmxMetricsSink.register(name));
+    }
+
+    /**
+     * Runs k-fold cross-validation: splits the images into folds and, for every fold, trains a new network
+     * on the other folds and tests it on that one. The folds train at the same time, each on its own network
+     * and batch pipeline, and all of them read the same list of images, which is never changed. Each fold is
+     * normalized with the statistics of its own training folds, so the held-out images play no part in them.
+     * Prints the accuracy of every fold, the mean and standard deviation, and the wall time.
+     * @param images the images to split, with their raw pixel values
+     * @param folds the number of folds
+     * @param parallelism the number of folds trained at the same time
+     * @return the best accuracy of every fold
+     */
+    public double[] crossValidate(List<Image> images, int folds, int parallelism) throws InterruptedException {
+        if (folds < 2 || folds > images.size()) {
+            throw new IllegalArgumentException("Folds must be between 2 and the number of images, was " + folds);
+        }
 
-        NeuralNetwork net = builder.build();
+        int[] assignment = assignFolds(images, folds, new Random(Config.SEED));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, folds));
+        long start = System.nanoTime();
 
-        double bestAccuracy = 0;
+        double[] accuracies = new double[folds];
+        try {
+            List<Future<Double>> results = new ArrayList<>();
+            for (int fold = 0; fold < folds; fold++) {
+                int index = fold;
+                results.add(executor.submit(() -> trainFold(images, assignment, index)));
+            }
+
+            for (int fold = 0; fold < folds; fold++) {
+                accuracies[fold] = results.get(fold).get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Fold failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        double mean = Arrays.stream(accuracies).average().orElse(0);
+        double variance = Arrays.stream(accuracies).map(a -> (a - mean) * (a - mean)).sum() / folds;
+        DecimalFormat df = new DecimalFormat("#.####");
+
+        System.out.println(folds + "-fold accuracy: " + df.format(mean) + " +/- " + df.format(Math.sqrt(variance))
+                + ", wall time " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return accuracies;
+    }
+
+    /**
+     * Assigns every image to a fold so that each fold holds about the same share of every label.
+     * The images are shuffled, grouped by label and then dealt out to the folds in turn.
+     * @return the fold of every image
+     */
+    private static int[] assignFolds(List<Image> images, int folds, Random random) {
+        List<Integer> order = new ArrayList<>(images.size());
+        for (int i = 0; i < images.size(); i++) {
+            order.add(i);
+        }
+        shuffle(order, random);
+        order.sort(Comparator.comparingInt(i -> images.get(i).getLabel()));
+
+        int[] assignment = new int[images.size()];
+        for (int i = 0; i < order.size(); i++) {
+            assignment[order.get(i)] = i % folds;
+        }
+        return assignment;
+    }
+
+    /**
+     * Trains a new network on every fold but one and tests it on that one, stopping early as twoFoldTest does.
+     * Both sides are normalized with the statistics of the training folds.
+     * @return the best accuracy on the held-out fold
+     */
+    private double trainFold(List<Image> images, int[] assignment, int fold) {
+        List<Image> imagesTrain = new ArrayList<>();
+        List<Image> imagesTest = new ArrayList<>();
+        for (int i = 0; i < images.size(); i++) {
+            (assignment[i] == fold ? imagesTest : imagesTrain).add(images.get(i));
+        }
+
+        Normalization normalization = Normalization.of(imagesTrain);
+        imagesTrain = normalization.apply(imagesTrain);
+        imagesTest = normalization.apply(imagesTest);
+
+        long start = System.nanoTime();
+        float bestAccuracy = 0;
+        int bestEpochs = 0;
         int count = 0;
 
-        float rate = net.test(imagesTest);
-        System.out.println("Pre training success rate: " + rate);
-
-        // Early stopping helps to prevent over-fitting by stopping the training
-        // process when the validation loss stops improving.
-        for(int epochIndex = 0; epochIndex < Config.EPOCHS; epochIndex++){
-            shuffle(imagesTrain);
-            double averageCost = net.train(epochIndex, imagesTrain);
-            rate = net.test(imagesTest);
-
-            if (rate > bestAccuracy) {
-                bestAccuracy = rate;
-                count = 0;
-            } else {
-                count++;
-                if (count == Config.WAIT) break;
+        try (NeuralNetwork net = buildNetwork();
+             BatchPipeline pipeline = new BatchPipeline(imagesTrain, Config.BATCH_SIZE * Config.PIPELINE_BATCHES, Config.SEED + fold, createAugmentation())) {
+            for (int epochIndex = 0; epochIndex < Config.EPOCHS; epochIndex++) {
+                net.train(epochIndex, pipeline);
+                float rate = net.test(imagesTest);
+
+                if (rate > bestAccuracy) {
+                    bestAccuracy = rate;
+                    bestEpochs = epochIndex + 1;
+                    count = 0;
+                } else {
+                    count++;
+                    if (count == Config.WAIT) break;
+                }
             }
+        }
+
+        System.out.println("fold " + fold + ": accuracy " + bestAccuracy + " after " + bestEpochs + " epochs"
+                + " (" + (System.nanoTime() - start) / 1_000_000 + " ms)");
+        return bestAccuracy;
+    }
 
-            // Round average cost to two decimal places
-            DecimalFormat df = new DecimalFormat("#.###");
+    /**
+     * Searches for the best learning rate, number and size of filters and scale factor, training on the
+     * training file and ranking by accuracy on the test file. Random configurations are drawn from the
+     * search space and weak ones are pruned early by successive halving; the best are printed.
+     * @param imagesTrain the images to train on
+     * @param imagesTest the images to rank the configurations by
+     * @return the trials, best first
+     */
+    public List<Trial> search(List<Image> imagesTrain, List<Image> imagesTest) throws InterruptedException {
+        SearchSpace space = new SearchSpace()
+                .addLogRange("learningRate", 0.01, 1)
+                .addChoice("numFilters", 8, 13, 16, 24)
+                .addChoice("filterSize", 2, 3)
+                .addChoice("scaleFactor", 100, 200, 400);
 
-            System.out.println("epoch: " + epochIndex + ", cost: " + df.format(averageCost) + ", accuracy: " + df.format(rate));
+        SuccessiveHalving search = new SuccessiveHalving(h -> buildNetwork(h), imagesTrain, imagesTest);
+        search.setMinEpochs(Config.SEARCH_MIN_EPOCHS);
+        search.setMaxEpochs(Config.EPOCHS);
+        search.setReduction(Config.SEARCH_REDUCTION);
+        search.setParallelism(Config.PARALLEL_TRAINING);
+        search.setBatchSize(Config.BATCH_SIZE * Config.PIPELINE_BATCHES);
+        search.setSeed(Config.SEED);
+        search.setAugmentation(this::createAugmentation);
+
+        long start = System.nanoTime();
+        List<Trial> trials = search.run(space.sample(Config.SEARCH_SAMPLES, Config.SEED));
+
+        System.out.println("Searched " + trials.size() + " configurations in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        for (Trial trial : trials.subList(0, Math.min(5, trials.size()))) {
+            System.out.println(trial);
         }
+        return trials;
+    }
+
+    /**
+     * Serves a saved network over HTTP until the process is stopped, see {@link InferenceServer}
+     * @param path the path to the network's checkpoint
+     */
+    public void serve(String path) throws IOException, InterruptedException {
+        NeuralNetwork net = NeuralNetwork.load(path);
+        net.setPredictionCache(Config.PREDICTION_CACHE);
+        InferenceServer server = new InferenceServer(net, Config.INPUT_ROWS, Config.INPUT_COLS,
+                Config.SERVER_PORT, Config.SERVER_MAX_BATCH, Config.SERVER_MAX_WAIT_MICROS);
 
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            net.close();
+            if (net.getPredictionCache() != null) {
+                System.out.println("Prediction cache: " + net.getPredictionCache());
+            }
+        }));
+
+        server.start();
+        System.out.println("Serving " + path + " on port " + server.getPort() + ", POST /predict");
+        Thread.currentThread().join();
     }
 
-    public static void main(String[] args) throws IOException {
-        Scanner scanner = new Scanner(System.in);
+    /**
+     * Quantizes a saved network to int8, calibrating on a sample of the training images, and prints how its
+     * accuracy, size and speed on the test images compare with the double network
+     * @param path the path to the network's checkpoint
+     * @param imagesTrain the images to draw the calibration sample from
+     * @param imagesTest the images to compare on
+     * @return the comparison
+     */
+    public QuantizationReport quantize(String path, List<Image> imagesTrain, List<Image> imagesTest) throws IOException {
+        List<Image> calibration = new ArrayList<>(imagesTrain);
+        shuffle(calibration, new Random(Config.SEED));
+        calibration = calibration.subList(0, Math.min(Config.QUANTIZE_CALIBRATION, calibration.size()));
+
+        try (NeuralNetwork net = NeuralNetwork.load(path)) {
+            QuantizationReport report = QuantizedNetwork.quantize(net, calibration).compare(net, imagesTest);
+            System.out.println(report);
+            return report;
+        }
+    }
 
-        System.out.println("Run first fold? (y/n)");
-        String input = scanner.nextLine();
-        if (input.equals("y")) {
-            Main main = new Main();
-            main.twoFoldTest("src/data/train.csv", "src/data/test.csv");
+    /**
+     * Converts a saved network to 32-bit floats and prints how its accuracy, size and speed on the test images
+     * compare with the double network
+     * @param path the path to the network's checkpoint
+     * @param imagesTest the images to compare on
+     * @return the comparison
+     */
+    public QuantizationReport float32(String path, List<Image> imagesTest) throws IOException {
+        try (NeuralNetwork net = NeuralNetwork.load(path)) {
+            QuantizationReport report = Float32Network.convert(net).compare(net, imagesTest);
+            System.out.println(report);
+            return report;
         }
+    }
 
-        System.out.println();
+    /**
+     * Runs an evaluation chosen by the first argument:
+     * cv (the default) cross-validates over both data files, twofold trains on each file and tests on the other,
+     * search tunes the hyperparameters, serve answers HTTP requests with the network saved at the second argument (the best of fold1 by default),
+     * quantize compares an int8 copy of that network with the original, and float32 a 32-bit float copy.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String mode = args.length > 0 ? args[0] : "cv";
+        Main main = new Main();
 
-        System.out.println("Run second fold? (y/n)");
-        input = scanner.nextLine();
-        if (input.equals("y")) {
-            Main main = new Main();
-            main.twoFoldTest("src/data/test.csv", "src/data/train.csv");
+        switch (mode) {
+            case "cv" -> {
+                // Parsed once and shared by every fold, which normalizes its own copy
+                List<Image> images = new DataLoader().readRawData(List.of(TRAIN_PATH, TEST_PATH));
+                System.out.println("Images: " + images.size());
+                main.crossValidate(images, Config.FOLDS, Config.PARALLEL_TRAINING);
+            }
+            case "twofold" -> {
+                main.twoFoldTest(TRAIN_PATH, TEST_PATH, "fold1");
+                System.out.println();
+                main.twoFoldTest(TEST_PATH, TRAIN_PATH, "fold2");
+            }
+            case "search" -> main.search(new DataLoader().readData(TRAIN_PATH), new DataLoader().readData(TEST_PATH));
+            case "serve" -> main.serve(args.length > 1 ? args[1] : Path.of(Config.CHECKPOINT_DIR, "fold1-best.ucn").toString());
+            case "quantize" -> main.quantize(args.length > 1 ? args[1] : Path.of(Config.CHECKPOINT_DIR, "fold1-best.ucn").toString(),
+                    new DataLoader().readData(TRAIN_PATH), new DataLoader().readData(TEST_PATH));
+            case "float32" -> main.float32(args.length > 1 ? args[1] : Path.of(Config.CHECKPOINT_DIR, "fold1-best.ucn").toString(),
+                    new DataLoader().readData(TEST_PATH));
+            default -> throw new IllegalArgumentException("Unknown mode " + mode + ", expected cv, twofold, search, serve, quantize or float32");
         }
     }
 }
@@ -0,0 +1,83 @@
+package data;
+
+/**
+ * A block of images stored back to back in one flat array, with their labels
+ */
+public class Batch {
+
+    private final double[] pixels;
+    private final int[] labels;
+    private final int rows;
+    private final int cols;
+    private int size;
+
+    /**
+     * Creates an empty batch
+     * @param capacity the maximum number of images the batch can hold
+     * @param rows the number of rows in each image
+     * @param cols the number of columns in each image
+     */
+    public Batch(int capacity, int rows, int cols) {
+        this.pixels = new double[capacity * rows * cols];
+        this.labels = new int[capacity];
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    /**
+     * Returns the pixels of every image, rows * cols values per image
+     * @return the backing array, which may be longer than the images in the batch
+     */
+    public double[] getPixels() {
+        return pixels;
+    }
+
+    public int[] getLabels() {
+        return labels;
+    }
+
+    public int getLabel(int n) {
+        return labels[n];
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getCapacity() {
+        return labels.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        if (size < 0 || size > labels.length) {
+            throw new IllegalArgumentException("Batch of capacity " + labels.length + " cannot hold " + size + " images");
+        }
+        this.size = size;
+    }
+
+    /**
+     * Appends an image to the batch
+     * @param data the pixels of the image
+     * @param label the label of the image
+     */
+    public void add(double[][] data, int label) {
+        int offset = size * rows * cols;
+        for (double[] row : data) {
+            System.arraycopy(row, 0, pixels, offset, cols);
+            offset += cols;
+        }
+        labels[size++] = label;
+    }
+
+    public boolean isFull() {
+        return size == labels.length;
+    }
+}
@@ -0,0 +1,232 @@
+package data;
+
+/**
+ * A flat, strided view over a backing double array. A batch of feature maps is laid out
+ * as [batch][length][rows][cols] in row-major order, so a whole layer's output lives in
+ * one contiguous block instead of a list of jagged 2D arrays.
+ */
+public final class Tensor {
+
+    private final double[] data;
+    private final int offset;
+
+    private final int batch;
+    private final int length;
+    private final int rows;
+    private final int cols;
+
+    private final int sampleStride;
+    private final int lengthStride;
+    private final int rowStride;
+
+    /**
+     * Creates a new zero-filled tensor holding a single sample
+     * @param length the number of feature maps
+     * @param rows the number of rows in each feature map
+     * @param cols the number of columns in each feature map
+     */
+    public Tensor(int length, int rows, int cols) {
+        this(1, length, rows, cols);
+    }
+
+    /**
+     * Creates a new zero-filled tensor
+     * @param batch the number of samples
+     * @param length the number of feature maps in each sample
+     * @param rows the number of rows in each feature map
+     * @param cols the number of columns in each feature map
+     */
+    public Tensor(int batch, int length, int rows, int cols) {
+        this(new double[batch * length * rows * cols], 0, batch, length, rows, cols);
+    }
+
+    /**
+     * Wraps an existing array holding a single sample without copying it
+     * @param data the backing array
+     * @param offset the index of the first element of the tensor in the backing array
+     * @param length the number of feature maps
+     * @param rows the number of rows in each feature map
+     * @param cols the number of columns in each feature map
+     */
+    public Tensor(double[] data, int offset, int length, int rows, int cols) {
+        this(data, offset, 1, length, rows, cols);
+    }
+
+    /**
+     * Wraps an existing array without copying it
+     * @param data the backing array
+     * @param offset the index of the first element of the tensor in the backing array
+     * @param batch the number of samples
+     * @param length the number of feature maps in each sample
+     * @param rows the number of rows in each feature map
+     * @param cols the number of columns in each feature map
+     */
+    public Tensor(double[] data, int offset, int batch, int length, int rows, int cols) {
+        if (offset < 0 || offset + batch * length * rows * cols > data.length) {
+            throw new IllegalArgumentException("Tensor of shape " + batch + "x" + length + "x" + rows + "x" + cols
+                    + " at offset " + offset + " does not fit in an array of " + data.length);
+        }
+
+        this.data = data;
+        this.offset = offset;
+        this.batch = batch;
+        this.length = length;
+        this.rows = rows;
+        this.cols = cols;
+        this.rowStride = cols;
+        this.lengthStride = rows * cols;
+        this.sampleStride = length * rows * cols;
+    }
+
+    /**
+     * Wraps a vector as a tensor with a single row per element
+     * @param vector the vector to wrap
+     * @return a tensor of shape 1 x vector.length x 1 x 1 sharing the vector
+     */
+    public static Tensor of(double[] vector) {
+        return new Tensor(vector, 0, 1, vector.length, 1, 1);
+    }
+
+    /**
+     * Returns the position of an element of the first sample in the backing array
+     * @param l the feature map
+     * @param r the row
+     * @param c the column
+     * @return the index into {@link #getData()}
+     */
+    public int index(int l, int r, int c) {
+        return offset + l * lengthStride + r * rowStride + c;
+    }
+
+    /**
+     * Returns the position of an element in the backing array
+     * @param n the sample
+     * @param l the feature map
+     * @param r the row
+     * @param c the column
+     * @return the index into {@link #getData()}
+     */
+    public int index(int n, int l, int r, int c) {
+        return offset + n * sampleStride + l * lengthStride + r * rowStride + c;
+    }
+
+    public double get(int l, int r, int c) {
+        return data[index(l, r, c)];
+    }
+
+    public double get(int n, int l, int r, int c) {
+        return data[index(n, l, r, c)];
+    }
+
+    public void set(int l, int r, int c, double value) {
+        data[index(l, r, c)] = value;
+    }
+
+    public void set(int n, int l, int r, int c, double value) {
+        data[index(n, l, r, c)] = value;
+    }
+
+    public void add(int l, int r, int c, double value) {
+        data[index(l, r, c)] += value;
+    }
+
+    public void add(int n, int l, int r, int c, double value) {
+        data[index(n, l, r, c)] += value;
+    }
+
+    /**
+     * Returns a view of a single feature map of the first sample that shares this tensor's data
+     * @param l the feature map
+     * @return a tensor of shape 1 x 1 x rows x cols
+     */
+    public Tensor slice(int l) {
+        return new Tensor(data, offset + l * lengthStride, 1, 1, rows, cols);
+    }
+
+    /**
+     * Returns a view of a single sample that shares this tensor's data
+     * @param n the sample
+     * @return a tensor of shape 1 x length x rows x cols
+     */
+    public Tensor sample(int n) {
+        return new Tensor(data, offset + n * sampleStride, 1, length, rows, cols);
+    }
+
+    /**
+     * Returns a view of a contiguous range of samples that shares this tensor's data
+     * @param from the first sample, inclusive
+     * @param to the last sample, exclusive
+     * @return a tensor of shape (to - from) x length x rows x cols
+     */
+    public Tensor samples(int from, int to) {
+        return new Tensor(data, offset + from * sampleStride, to - from, length, rows, cols);
+    }
+
+    /**
+     * Returns a view of the same data with a different per-sample shape
+     * @param length the new number of feature maps
+     * @param rows the new number of rows
+     * @param cols the new number of columns
+     * @return the reshaped view, or this tensor if it already has that shape
+     */
+    public Tensor reshape(int length, int rows, int cols) {
+        if (length == this.length && rows == this.rows && cols == this.cols) {
+            return this;
+        }
+        if (length * rows * cols != sampleStride) {
+            throw new IllegalArgumentException("Cannot reshape " + sampleStride + " elements to "
+                    + length + "x" + rows + "x" + cols);
+        }
+        return new Tensor(data, offset, batch, length, rows, cols);
+    }
+
+    /**
+     * Copies the elements of this tensor into a new array
+     * @return the elements in row-major order
+     */
+    public double[] toArray() {
+        double[] out = new double[size()];
+        System.arraycopy(data, offset, out, 0, out.length);
+        return out;
+    }
+
+    public double[] getData() {
+        return data;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getBatch() {
+        return batch;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getSampleStride() {
+        return sampleStride;
+    }
+
+    public int getLengthStride() {
+        return lengthStride;
+    }
+
+    public int getRowStride() {
+        return rowStride;
+    }
+
+    public int size() {
+        return batch * sampleStride;
+    }
+}
@@ -0,0 +1,75 @@
+package data;
+
+import java.util.Arrays;
+
+/**
+ * A reusable buffer for a batch of feature maps of a fixed shape. The backing array is allocated up front
+ * for a given number of samples and only replaced if a larger batch is ever asked for, so a layer can
+ * hand out the same memory on every pass instead of allocating a new tensor.
+ */
+public final class Workspace {
+
+    private final int length;
+    private final int rows;
+    private final int cols;
+
+    private double[] data;
+    private Tensor view;
+
+    /**
+     * Creates a new workspace
+     * @param capacity the number of samples to allocate room for
+     * @param length the number of feature maps in each sample
+     * @param rows the number of rows in each feature map
+     * @param cols the number of columns in each feature map
+     */
+    public Workspace(int capacity, int length, int rows, int cols) {
+        this.length = length;
+        this.rows = rows;
+        this.cols = cols;
+        this.data = new double[Math.max(capacity, 1) * length * rows * cols];
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    /**
+     * Returns the buffer as a tensor holding a number of samples. The contents are whatever was last written.
+     * The tensor is only valid until the next call, which may return the same memory.
+     * @param batch the number of samples
+     * @return a tensor of shape batch x length x rows x cols
+     */
+    public Tensor get(int batch) {
+        if (view != null && view.getBatch() == batch) {
+            return view;
+        }
+
+        int size = batch * length * rows * cols;
+        if (size > data.length) {
+            data = new double[size];
+        }
+
+        view = new Tensor(data, 0, batch, length, rows, cols);
+        return view;
+    }
+
+    /**
+     * Returns the buffer as a zero-filled tensor holding a number of samples, see {@link #get(int)}
+     * @param batch the number of samples
+     * @return a tensor of shape batch x length x rows x cols filled with zeros
+     */
+    public Tensor zeroed(int batch) {
+        Tensor tensor = get(batch);
+        Arrays.fill(data, 0, tensor.size(), 0.0);
+        return tensor;
+    }
+}
@@ -0,0 +1,104 @@
+package helpers;
+
+import java.util.Random;
+
+/**
+ * Rotates, scales and shifts an image by a small random amount about its centre.
+ *
+ * Every output pixel is sampled from the original image with bilinear interpolation, and pixels that map
+ * outside the image take the background value, the smallest value in the image. The image is copied into a
+ * scratch buffer that is reused from image to image, so applying the augmentation allocates nothing; for the
+ * same reason one instance must not be used from two threads at once.
+ */
+public class AffineAugmentation implements Augmentation {
+
+    private final double _maxDegrees;
+    private final double _maxScale;
+    private final double _maxShift;
+
+    private double[] _scratch = new double[0];
+
+    /**
+     * @param maxDegrees the largest rotation in either direction, in degrees
+     * @param maxScale the largest change in size, as a fraction, so 0.1 scales between 0.9 and 1.1
+     * @param maxShift the largest shift in either direction along each axis, in pixels
+     */
+    public AffineAugmentation(double maxDegrees, double maxScale, double maxShift) {
+        if (maxDegrees < 0 || maxShift < 0 || maxScale < 0 || maxScale >= 1) {
+            throw new IllegalArgumentException("Augmentation ranges must be non-negative and the scale below 1");
+        }
+
+        _maxDegrees = maxDegrees;
+        _maxScale = maxScale;
+        _maxShift = maxShift;
+    }
+
+    @Override
+    public void apply(double[] pixels, int offset, int rows, int cols, Random random) {
+        int length = rows * cols;
+        if (_scratch.length < length) {
+            _scratch = new double[length];
+        }
+        double[] source = _scratch;
+
+        double background = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < length; i++) {
+            source[i] = pixels[offset + i];
+            background = Math.min(background, source[i]);
+        }
+
+        double angle = Math.toRadians(uniform(random, _maxDegrees));
+        double scale = 1 + uniform(random, _maxScale);
+        double shiftRow = uniform(random, _maxShift);
+        double shiftCol = uniform(random, _maxShift);
+
+        // Each output pixel is mapped back through the inverse transform to the point it came from
+        double cos = Math.cos(angle) / scale;
+        double sin = Math.sin(angle) / scale;
+        double centreRow = (rows - 1) / 2.0;
+        double centreCol = (cols - 1) / 2.0;
+
+        for (int r = 0; r < rows; r++) {
+            double y = r - centreRow - shiftRow;
+
+            for (int c = 0; c < cols; c++) {
+                double x = c - centreCol - shiftCol;
+                double sourceRow = -sin * x + cos * y + centreRow;
+                double sourceCol = cos * x + sin * y + centreCol;
+
+                pixels[offset + r * cols + c] = sample(source, rows, cols, sourceRow, sourceCol, background);
+            }
+        }
+    }
+
+    /**
+     * Interpolates between the four pixels around a point, treating pixels outside the image as background
+     */
+    private static double sample(double[] source, int rows, int cols, double row, double col, double background) {
+        int r0 = (int) Math.floor(row);
+        int c0 = (int) Math.floor(col);
+        double fr = row - r0;
+        double fc = col - c0;
+
+        double top = (1 - fc) * pixel(source, rows, cols, r0, c0, background)
+                + fc * pixel(source, rows, cols, r0, c0 + 1, background);
+        double bottom = (1 - fc) * pixel(source, rows, cols, r0 + 1, c0, background)
+                + fc * pixel(source, rows, cols, r0 + 1, c0 + 1, background);
+
+        return (1 - fr) * top + fr * bottom;
+    }
+
+    private static double pixel(double[] source, int rows, int cols, int r, int c, double background) {
+        if (r < 0 || r >= rows || c < 0 || c >= cols) {
+            return background;
+        }
+        return source[r * cols + c];
+    }
+
+    /**
+     * Draws a value evenly from -range to range
+     */
+    private static double uniform(Random random, double range) {
+        return (random.nextDouble() * 2 - 1) * range;
+    }
+}
@@ -0,0 +1,32 @@
+package helpers;
+
+import java.util.Random;
+
+/**
+ * A random change made to a training image as it is fed to the network, so every epoch sees a
+ * slightly different copy of the data set
+ */
+public interface Augmentation {
+
+    /**
+     * Changes an image in place
+     * @param pixels the array holding the image, row by row
+     * @param offset the position of the first pixel of the image in the array
+     * @param rows the number of rows in the image
+     * @param cols the number of columns in the image
+     * @param random the source of randomness, so a seeded run is repeatable
+     */
+    void apply(double[] pixels, int offset, int rows, int cols, Random random);
+
+    /**
+     * Returns an augmentation that makes this change and then another
+     * @param next the change made after this one
+     * @return the combined augmentation
+     */
+    default Augmentation andThen(Augmentation next) {
+        return (pixels, offset, rows, cols, random) -> {
+            apply(pixels, offset, rows, cols, random);
+            next.apply(pixels, offset, rows, cols, random);
+        };
+    }
+}
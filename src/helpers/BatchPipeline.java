@@ -0,0 +1,249 @@
+package helpers;
+
+import data.Batch;
+import data.Image;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Feeds a list of images to the network in shuffled batches prepared on a background thread.
+ *
+ * Each iteration is one epoch: the producer thread shuffles the order of the images, then gathers the
+ * images of the next batch into one of two reusable buffers and augments them, while the network trains
+ * on the batch in the other buffer. The network never waits for data unless preparing a batch takes
+ * longer than training on one, and after the first epoch no buffers are allocated.
+ *
+ * The order and the augmentations are drawn from one seeded random sequence, so a run with the same seed
+ * sees the same batches. A batch returned by the iterator is only valid until the next call to
+ * {@code hasNext} or {@code next}, when its buffer is handed back to the producer.
+ */
+public class BatchPipeline implements Iterable<Batch>, AutoCloseable {
+
+    private static final int BUFFERS = 2;
+
+    // Marks the end of an epoch in the queue of prepared batches
+    private static final Batch END = new Batch(0, 0, 0);
+
+    private final List<Image> _images;
+    private final int _rows;
+    private final int _cols;
+    private final Augmentation _augmentation;
+    private final Random _random;
+
+    private final int[] _order;
+    private final Batch[] _buffers;
+    private final ExecutorService _executor;
+    private Producer _current;
+
+    /**
+     * Creates a pipeline without augmentation
+     * @param images the images to train on
+     * @param batchSize the number of images in each batch, best a multiple of the network's batch size
+     * @param seed the seed of the shuffles
+     */
+    public BatchPipeline(List<Image> images, int batchSize, long seed) {
+        this(images, batchSize, seed, null);
+    }
+
+    /**
+     * Creates a pipeline
+     * @param images the images to train on
+     * @param batchSize the number of images in each batch, best a multiple of the network's batch size
+     * @param seed the seed of the shuffles and augmentations
+     * @param augmentation the change made to every image as it is gathered, or null to leave them as they are
+     */
+    public BatchPipeline(List<Image> images, int batchSize, long seed, Augmentation augmentation) {
+        if (images.isEmpty()) {
+            throw new IllegalArgumentException("No images to feed");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, was " + batchSize);
+        }
+
+        _images = images;
+        _rows = images.get(0).getData().length;
+        _cols = images.get(0).getData()[0].length;
+        _augmentation = augmentation;
+        _random = new Random(seed);
+
+        _order = new int[images.size()];
+        for (int i = 0; i < _order.length; i++) {
+            _order[i] = i;
+        }
+
+        _buffers = new Batch[BUFFERS];
+        for (int i = 0; i < BUFFERS; i++) {
+            _buffers[i] = new Batch(Math.min(batchSize, images.size()), _rows, _cols);
+        }
+
+        _executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "batch-pipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts preparing a new epoch. An epoch still in progress is abandoned first.
+     * @return an iterator over the batches of the epoch
+     */
+    @Override
+    public synchronized Iterator<Batch> iterator() {
+        if (_current != null) {
+            _current.cancel();
+        }
+
+        _current = new Producer();
+        _current._task = _executor.submit(_current::produce);
+        return _current;
+    }
+
+    /**
+     * Stops the producer thread
+     */
+    @Override
+    public synchronized void close() {
+        if (_current != null) {
+            _current.cancel();
+            _current = null;
+        }
+        _executor.shutdownNow();
+    }
+
+    /**
+     * One epoch: prepares batches on the producer thread and hands them to the training thread
+     */
+    private class Producer implements Iterator<Batch> {
+
+        private final BlockingQueue<Batch> _free = new ArrayBlockingQueue<>(BUFFERS);
+        private final BlockingQueue<Batch> _ready = new ArrayBlockingQueue<>(BUFFERS + 1);
+        private final AtomicBoolean _started = new AtomicBoolean();
+        private final CountDownLatch _done = new CountDownLatch(1);
+        private volatile RuntimeException _failure;
+        private Future<?> _task;
+
+        // The batch the next call to next() returns, and the batch last returned, still in use by the caller
+        private Batch _next;
+        private Batch _inUse;
+
+        Producer() {
+            for (Batch buffer : _buffers) {
+                _free.add(buffer);
+            }
+        }
+
+        /**
+         * Shuffles the images and fills batches until every image has been fed, then marks the end
+         */
+        private void produce() {
+            // An epoch cancelled before it started never runs
+            if (!_started.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                shuffle();
+
+                for (int from = 0; from < _order.length; ) {
+                    Batch batch = _free.take();
+                    batch.setSize(0);
+
+                    int to = Math.min(from + batch.getCapacity(), _order.length);
+                    for (; from < to; from++) {
+                        Image image = _images.get(_order[from]);
+                        int offset = batch.size() * _rows * _cols;
+                        batch.add(image.getData(), image.getLabel());
+
+                        if (_augmentation != null) {
+                            _augmentation.apply(batch.getPixels(), offset, _rows, _cols, _random);
+                        }
+                    }
+
+                    _ready.put(batch);
+                }
+                _ready.put(END);
+            } catch (InterruptedException e) {
+                // Cancelled by a newer epoch or by close
+            } catch (RuntimeException e) {
+                _failure = e;
+                _ready.add(END);
+            } finally {
+                _done.countDown();
+            }
+        }
+
+        /**
+         * Fisher-Yates shuffle of the image order, continuing the seeded sequence of the last epoch
+         */
+        private void shuffle() {
+            for (int i = _order.length - 1; i > 0; i--) {
+                int j = _random.nextInt(i + 1);
+                int swap = _order[i];
+                _order[i] = _order[j];
+                _order[j] = swap;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (_next == null) {
+                // The caller is done with the last batch, so its buffer can be filled again
+                if (_inUse != null) {
+                    _free.add(_inUse);
+                    _inUse = null;
+                }
+
+                try {
+                    _next = _ready.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for the next batch", e);
+                }
+
+                if (_failure != null) {
+                    throw new IllegalStateException("Could not prepare a batch", _failure);
+                }
+            }
+            return _next != END;
+        }
+
+        @Override
+        public Batch next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            _inUse = _next;
+            _next = null;
+            return _inUse;
+        }
+
+        /**
+         * Stops the producer and waits until it no longer touches the buffers
+         */
+        void cancel() {
+            if (_started.compareAndSet(false, true)) {
+                _task.cancel(false);
+                return;
+            }
+
+            _task.cancel(true);
+            try {
+                _done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while stopping the batch producer", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package helpers;
+
+import data.Image;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A compact binary copy of an optical digits CSV file, read through a memory mapping.
+ *
+ * The file starts with a fixed header followed by the pixels of every image as unsigned bytes
+ * (one byte per pixel count, row by row, image after image) and then one byte per label:
+ * <pre>
+ * int    magic        'UCID'
+ * int    version
+ * int    count        number of images
+ * int    rows
+ * int    cols
+ * long   labelOffset  position of the first label in the file
+ * double mean         of every pixel, for z-score normalization
+ * double stdDev       of every pixel, for z-score normalization
+ * </pre>
+ * All values are little-endian. Images are served straight from the mapping and normalized on access,
+ * so opening a file costs neither parsing nor heap proportional to its size.
+ */
+public class BinaryDataset {
+
+    private static final int MAGIC = 0x55434944;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * 5 + 8 + 8 * 2;
+
+    private final MappedByteBuffer _buffer;
+    private final int _count;
+    private final int _rows;
+    private final int _cols;
+    private final int _labelOffset;
+    private final double _mean;
+    private final double _stdDev;
+
+    /**
+     * Maps a binary dataset file into memory
+     * @param path the path to the file
+     */
+    public BinaryDataset(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            _buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        _buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (_buffer.capacity() < HEADER_SIZE || _buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a binary dataset " + path);
+        }
+        if (_buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Unsupported binary dataset version " + _buffer.getInt(4) + " in " + path);
+        }
+
+        _count = _buffer.getInt(8);
+        _rows = _buffer.getInt(12);
+        _cols = _buffer.getInt(16);
+        _labelOffset = (int) _buffer.getLong(20);
+        _mean = _buffer.getDouble(28);
+        _stdDev = _buffer.getDouble(36);
+
+        if (_labelOffset != HEADER_SIZE + _count * _rows * _cols || _buffer.capacity() < _labelOffset + _count) {
+            throw new IllegalArgumentException("Truncated binary dataset " + path);
+        }
+    }
+
+    /**
+     * Converts an optical digits CSV file (64 pixel counts followed by the label on each line)
+     * into the binary format, computing the normalization statistics on the way
+     * @param csvPath the path to the CSV file
+     * @param binaryPath the path of the binary file to write
+     */
+    public static void convert(String csvPath, String binaryPath) throws IOException {
+        final int rows = 8;
+        final int cols = 8;
+        final int pixels = rows * cols;
+
+        // Labels are one byte per image, so they are kept until the pixels have been written
+        ByteArrayOutputStream labels = new ByteArrayOutputStream();
+        ByteBuffer pixelBuffer = ByteBuffer.allocate(64 * 1024);
+        int count = 0;
+
+        // Pixel counts are small integers, so their sums are exact
+        long sum = 0;
+        long sumOfSquares = 0;
+
+        try (BufferedReader dataReader = new BufferedReader(new FileReader(csvPath));
+             FileChannel channel = FileChannel.open(Path.of(binaryPath),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            // The pixels are streamed to the file after the header, which is written once the statistics are known
+            channel.position(HEADER_SIZE);
+            String line;
+
+            while ((line = dataReader.readLine()) != null) {
+                String[] lineItems = line.split(",");
+                if (lineItems.length != pixels + 1) {
+                    throw new IllegalArgumentException("Expected " + (pixels + 1) + " values per line in " + csvPath);
+                }
+
+                if (pixelBuffer.remaining() < pixels) {
+                    writeFully(channel, pixelBuffer.flip());
+                    pixelBuffer.clear();
+                }
+
+                for (int i = 0; i < pixels; i++) {
+                    int value = Integer.parseInt(lineItems[i]);
+                    pixelBuffer.put((byte) value);
+                    sum += value;
+                    sumOfSquares += (long) value * value;
+                }
+
+                labels.write(Integer.parseInt(lineItems[pixels]));
+                count++;
+            }
+
+            writeFully(channel, pixelBuffer.flip());
+            writeFully(channel, ByteBuffer.wrap(labels.toByteArray()));
+
+            long total = (long) count * pixels;
+            double mean = (double) sum / total;
+            double stdDev = Math.sqrt((double) sumOfSquares / total - mean * mean);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(count)
+                    .putInt(rows)
+                    .putInt(cols)
+                    .putLong(HEADER_SIZE + (long) count * pixels)
+                    .putDouble(mean)
+                    .putDouble(stdDev);
+
+            channel.position(0);
+            writeFully(channel, header.flip());
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Converts a CSV file from the command line
+     * @param args the path to the CSV file and the path of the binary file to write
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: BinaryDataset <input.csv> <output.bin>");
+            return;
+        }
+
+        convert(args[0], args[1]);
+    }
+
+    public int size() {
+        return _count;
+    }
+
+    public int getRows() {
+        return _rows;
+    }
+
+    public int getCols() {
+        return _cols;
+    }
+
+    public double getMean() {
+        return _mean;
+    }
+
+    public double getStdDev() {
+        return _stdDev;
+    }
+
+    /**
+     * Returns the label of an image
+     * @param n the position of the image
+     * @return the label
+     */
+    public int getLabel(int n) {
+        return _buffer.get(_labelOffset + n) & 0xFF;
+    }
+
+    /**
+     * Returns the raw pixel counts of an image as a read-only view of the mapping, without copying
+     * @param n the position of the image
+     * @return rows * cols unsigned bytes, row by row
+     */
+    public ByteBuffer getPixels(int n) {
+        int size = _rows * _cols;
+        return _buffer.slice(HEADER_SIZE + n * size, size).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a normalized pixel of an image
+     * @param n the position of the image
+     * @param row the row of the pixel
+     * @param col the column of the pixel
+     * @return the z-score of the pixel count
+     */
+    public double getPixel(int n, int row, int col) {
+        int value = _buffer.get(HEADER_SIZE + (n * _rows + row) * _cols + col) & 0xFF;
+        return (value - _mean) / _stdDev;
+    }
+
+    /**
+     * Writes the normalized pixels of a range of images into a flat buffer, image after image
+     * @param from the first image, inclusive
+     * @param to the last image, exclusive
+     * @param out the buffer to write to
+     * @param offset the position in the buffer of the first pixel
+     */
+    public void copyPixels(int from, int to, double[] out, int offset) {
+        int start = HEADER_SIZE + from * _rows * _cols;
+        int end = HEADER_SIZE + to * _rows * _cols;
+
+        for (int i = start; i < end; i++) {
+            out[offset++] = ((_buffer.get(i) & 0xFF) - _mean) / _stdDev;
+        }
+    }
+
+    /**
+     * Returns a normalized copy of an image
+     * @param n the position of the image
+     * @return the image
+     */
+    public Image getImage(int n) {
+        double[][] data = new double[_rows][_cols];
+        for (int row = 0; row < _rows; row++) {
+            for (int col = 0; col < _cols; col++) {
+                data[row][col] = getPixel(n, row, col);
+            }
+        }
+        return new Image(data, getLabel(n));
+    }
+
+    /**
+     * Returns the images as a list that builds each image from the mapping when it is read,
+     * so it can be passed wherever a loaded list of images is expected
+     * @return a read-only list of the images
+     */
+    public List<Image> asImages() {
+        return new ImageList();
+    }
+
+    private class ImageList extends AbstractList<Image> implements RandomAccess {
+        @Override
+        public Image get(int index) {
+            return getImage(index);
+        }
+
+        @Override
+        public int size() {
+            return _count;
+        }
+    }
+}
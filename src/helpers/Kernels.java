@@ -0,0 +1,149 @@
+package helpers;
+
+/**
+ * The innermost loops of the network, over contiguous ranges of flat arrays.
+ *
+ * Two backends exist: {@link ScalarKernels}, plain loops that run on any JVM, and {@link VectorKernels},
+ * explicit SIMD built on the incubating Vector API. The backend is picked once at startup: the vector
+ * kernels are used when the {@code jdk.incubator.vector} module has been added to the JVM
+ * ({@code --add-modules jdk.incubator.vector}), otherwise the scalar ones. Setting the system property
+ * {@code kernels} to {@code scalar} or {@code vector} forces a backend.
+ */
+public interface Kernels {
+
+    /**
+     * The kernels chosen at startup
+     */
+    Kernels INSTANCE = select();
+
+    /**
+     * Picks the kernel backend for this JVM
+     * @return the vector kernels if they can be used, otherwise the scalar kernels
+     */
+    private static Kernels select() {
+        String requested = System.getProperty("kernels", "auto");
+
+        switch (requested) {
+            case "scalar":
+                return new ScalarKernels();
+            case "vector":
+            case "auto":
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown kernels " + requested + ", expected scalar, vector or auto");
+        }
+
+        // The vector kernels are only loaded by name, so the scalar kernels work without the incubator module
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (Kernels) Class.forName("helpers.VectorKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                if (requested.equals("vector")) {
+                    throw new IllegalStateException("Vector kernels could not be loaded", e);
+                }
+            }
+        } else if (requested.equals("vector")) {
+            throw new IllegalStateException("Vector kernels need --add-modules jdk.incubator.vector");
+        }
+
+        return new ScalarKernels();
+    }
+
+    /**
+     * Returns the name of the backend
+     * @return "scalar" or "vector"
+     */
+    String getName();
+
+    /**
+     * Computes the dot product of two ranges
+     * @param a the first array
+     * @param aOffset the start of the range in the first array
+     * @param b the second array
+     * @param bOffset the start of the range in the second array
+     * @param length the length of both ranges
+     * @return the sum of a[i] * b[i]
+     */
+    double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    /**
+     * Adds a multiple of one range to another, y += alpha * x
+     * @param alpha the multiple
+     * @param x the array added
+     * @param xOffset the start of the range in x
+     * @param y the array added to
+     * @param yOffset the start of the range in y
+     * @param length the length of both ranges
+     */
+    void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length);
+
+    /**
+     * Computes the dot product of two ranges of floats, see {@link #dot(double[], int, double[], int, int)}
+     * @param a the first array
+     * @param aOffset the start of the range in the first array
+     * @param b the second array
+     * @param bOffset the start of the range in the second array
+     * @param length the length of both ranges
+     * @return the sum of a[i] * b[i]
+     */
+    float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    /**
+     * Adds a multiple of one range of floats to another, y += alpha * x
+     * @param alpha the multiple
+     * @param x the array added
+     * @param xOffset the start of the range in x
+     * @param y the array added to
+     * @param yOffset the start of the range in y
+     * @param length the length of both ranges
+     */
+    void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length);
+
+    /**
+     * Writes the sum of two ranges to a third, out = x + y
+     * @param x the first array
+     * @param xOffset the start of the range in x
+     * @param y the second array
+     * @param yOffset the start of the range in y
+     * @param out the array written to, which may be x or y
+     * @param outOffset the start of the range in out
+     * @param length the length of the ranges
+     */
+    void add(double[] x, int xOffset, double[] y, int yOffset, double[] out, int outOffset, int length);
+
+    /**
+     * Writes a scaled copy of a range, out = alpha * x
+     * @param alpha the factor
+     * @param x the array scaled
+     * @param xOffset the start of the range in x
+     * @param out the array written to, which may be x
+     * @param outOffset the start of the range in out
+     * @param length the length of the ranges
+     */
+    void scale(double alpha, double[] x, int xOffset, double[] out, int outOffset, int length);
+
+    /**
+     * Applies the leaky ReLU activation to a range, out = x > 0 ? x : slope * x
+     * @param slope the slope for negative inputs, between 0 and 1
+     * @param x the pre-activations
+     * @param xOffset the start of the range in x
+     * @param out the array written to, which may be x
+     * @param outOffset the start of the range in out
+     * @param length the length of the ranges
+     */
+    void leakyReLU(double slope, double[] x, int xOffset, double[] out, int outOffset, int length);
+
+    /**
+     * Back propagates an error through the leaky ReLU activation, out = dLdO * (z > 0 ? 1 : slope)
+     * @param slope the slope for negative inputs, between 0 and 1
+     * @param z the pre-activations of the forward pass
+     * @param zOffset the start of the range in z
+     * @param dLdO the error with respect to the activations
+     * @param dLdOOffset the start of the range in dLdO
+     * @param out the array written to, which may be dLdO
+     * @param outOffset the start of the range in out
+     * @param length the length of the ranges
+     */
+    void leakyReLUBackward(double slope, double[] z, int zOffset, double[] dLdO, int dLdOOffset,
+                           double[] out, int outOffset, int length);
+}
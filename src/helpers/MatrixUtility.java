@@ -4,13 +4,14 @@ import java.util.Arrays;
 
 public class MatrixUtility {
 
+    // The inner loops of every method below, scalar or vectorized depending on the JVM
+    private static final Kernels KERNELS = Kernels.INSTANCE;
+
     public static double[][] add(double[][] matrixOne, double[][] matrixTwo){
         double[][] out = new double[matrixOne.length][matrixOne[0].length];
 
         for(int i = 0; i < matrixOne.length; i++){
-            for(int j = 0; j < matrixOne[0].length; j++){
-                out[i][j] = matrixOne[i][j] + matrixTwo[i][j];
-            }
+            KERNELS.add(matrixOne[i], 0, matrixTwo[i], 0, out[i], 0, out[i].length);
         }
 
         return out;
@@ -19,16 +20,18 @@ public class MatrixUtility {
     public static double[] add(double[] matrixOne, double[] matrixTwo){
         double[] out = new double[matrixOne.length];
 
-        for(int i = 0; i < matrixOne.length; i++){
-            out[i] = matrixOne[i] + matrixTwo[i];
-        }
+        KERNELS.add(matrixOne, 0, matrixTwo, 0, out, 0, out.length);
 
         return out;
     }
 
     public static double[][] multiply(double[][] a, double scalar){
         double[][] out = new double[a.length][a[0].length];
-        Arrays.setAll(out, i -> Arrays.stream(a[i]).map(x -> x * scalar).toArray());
+
+        for(int i = 0; i < a.length; i++){
+            KERNELS.scale(scalar, a[i], 0, out[i], 0, out[i].length);
+        }
+
         return out;
     }
 
@@ -36,12 +39,153 @@ public class MatrixUtility {
 
         double[] out = new double[a.length];
 
-        for(int i = 0; i < a.length; i++){
-            out[i] = a[i] * scalar;
-        }
+        KERNELS.scale(scalar, a, 0, out, 0, out.length);
 
         return out;
 
     }
 
+    /**
+     * Computes C = A * B for row-major matrices stored in flat arrays.
+     * The loops run i-k-j so the innermost loop walks contiguous rows of B and C.
+     * @param a the backing array of A, an m x k matrix
+     * @param aOffset the index of A in its backing array
+     * @param b the backing array of B, a k x n matrix
+     * @param bOffset the index of B in its backing array
+     * @param c the backing array of C, an m x n matrix, overwritten with the product
+     * @param cOffset the index of C in its backing array
+     */
+    public static void matrixMultiply(double[] a, int aOffset, double[] b, int bOffset, double[] c, int cOffset,
+                                      int m, int k, int n){
+        Arrays.fill(c, cOffset, cOffset + m * n, 0.0);
+
+        for(int i = 0; i < m; i++){
+            int cRow = cOffset + i * n;
+
+            for(int p = 0; p < k; p++){
+                KERNELS.axpy(a[aOffset + i * k + p], b, bOffset + p * n, c, cRow, n);
+            }
+        }
+    }
+
+    /**
+     * Computes C += A^T * B for row-major matrices stored in flat arrays, so gradients
+     * of several batches can be accumulated into the same C.
+     * @param a the backing array of A, an m x k matrix
+     * @param aOffset the index of A in its backing array
+     * @param b the backing array of B, an m x n matrix
+     * @param bOffset the index of B in its backing array
+     * @param c the backing array of C, a k x n matrix the product is added to
+     * @param cOffset the index of C in its backing array
+     */
+    public static void matrixMultiplyTransposeA(double[] a, int aOffset, double[] b, int bOffset, double[] c, int cOffset,
+                                                int m, int k, int n){
+        for(int i = 0; i < m; i++){
+            int bRow = bOffset + i * n;
+
+            for(int p = 0; p < k; p++){
+                KERNELS.axpy(a[aOffset + i * k + p], b, bRow, c, cOffset + p * n, n);
+            }
+        }
+    }
+
+    /**
+     * Computes C = A * B^T for row-major matrices stored in flat arrays.
+     * Each element is a dot product of a row of A with a row of B, both contiguous.
+     * @param a the backing array of A, an m x n matrix
+     * @param aOffset the index of A in its backing array
+     * @param b the backing array of B, a k x n matrix
+     * @param bOffset the index of B in its backing array
+     * @param c the backing array of C, an m x k matrix, overwritten with the product
+     * @param cOffset the index of C in its backing array
+     */
+    public static void matrixMultiplyTransposeB(double[] a, int aOffset, double[] b, int bOffset, double[] c, int cOffset,
+                                                int m, int k, int n){
+        for(int i = 0; i < m; i++){
+            int aRow = aOffset + i * n;
+
+            for(int p = 0; p < k; p++){
+                c[cOffset + i * k + p] = KERNELS.dot(a, aRow, b, bOffset + p * n, n);
+            }
+        }
+    }
+
+    // Block sizes for gemm, chosen so a packed block of A and B stays in L2 cache
+    private static final int BLOCK_M = 64;
+    private static final int BLOCK_N = 256;
+    private static final int BLOCK_K = 128;
+
+    // Pack buffers for gemm, one pair per thread, grown to the largest blocks that thread has packed
+    private static final ThreadLocal<double[][]> PACK_BUFFERS = ThreadLocal.withInitial(() -> new double[2][0]);
+
+    /**
+     * Computes C += op(A) * op(B) for row-major matrices stored in flat arrays, where op(X) is X
+     * or its transpose. The product is computed in cache-sized blocks: each block of op(B) and op(A)
+     * is first packed into a contiguous buffer in the order the inner loop reads it, so the innermost
+     * loop always walks contiguous memory whatever the operands' layout.
+     * @param transposeA whether A is stored as a k x m matrix and used transposed
+     * @param transposeB whether B is stored as an n x k matrix and used transposed
+     * @param m the number of rows of op(A) and C
+     * @param n the number of columns of op(B) and C
+     * @param k the number of columns of op(A) and rows of op(B)
+     * @param a the backing array of A
+     * @param aOffset the index of A in its backing array
+     * @param b the backing array of B
+     * @param bOffset the index of B in its backing array
+     * @param c the backing array of C, an m x n matrix the product is added to
+     * @param cOffset the index of C in its backing array
+     */
+    public static void gemm(boolean transposeA, boolean transposeB, int m, int n, int k,
+                            double[] a, int aOffset, double[] b, int bOffset, double[] c, int cOffset){
+
+        double[][] buffers = PACK_BUFFERS.get();
+        if (buffers[0].length < Math.min(m, BLOCK_M) * Math.min(k, BLOCK_K)) {
+            buffers[0] = new double[Math.min(m, BLOCK_M) * Math.min(k, BLOCK_K)];
+        }
+        if (buffers[1].length < Math.min(k, BLOCK_K) * Math.min(n, BLOCK_N)) {
+            buffers[1] = new double[Math.min(k, BLOCK_K) * Math.min(n, BLOCK_N)];
+        }
+        double[] packedA = buffers[0];
+        double[] packedB = buffers[1];
+
+        for(int p0 = 0; p0 < k; p0 += BLOCK_K){
+            int kb = Math.min(BLOCK_K, k - p0);
+
+            for(int j0 = 0; j0 < n; j0 += BLOCK_N){
+                int nb = Math.min(BLOCK_N, n - j0);
+
+                // Pack the kb x nb block of op(B)
+                for(int p = 0; p < kb; p++){
+                    for(int j = 0; j < nb; j++){
+                        packedB[p * nb + j] = transposeB
+                                ? b[bOffset + (j0 + j) * k + p0 + p]
+                                : b[bOffset + (p0 + p) * n + j0 + j];
+                    }
+                }
+
+                for(int i0 = 0; i0 < m; i0 += BLOCK_M){
+                    int mb = Math.min(BLOCK_M, m - i0);
+
+                    // Pack the mb x kb block of op(A)
+                    for(int i = 0; i < mb; i++){
+                        for(int p = 0; p < kb; p++){
+                            packedA[i * kb + p] = transposeA
+                                    ? a[aOffset + (p0 + p) * m + i0 + i]
+                                    : a[aOffset + (i0 + i) * k + p0 + p];
+                        }
+                    }
+
+                    // Multiply the packed blocks into C
+                    for(int i = 0; i < mb; i++){
+                        int cRow = cOffset + (i0 + i) * n + j0;
+
+                        for(int p = 0; p < kb; p++){
+                            KERNELS.axpy(packedA[i * kb + p], packedB, p * nb, c, cRow, nb);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
 }
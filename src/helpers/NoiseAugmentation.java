@@ -0,0 +1,29 @@
+package helpers;
+
+import java.util.Random;
+
+/**
+ * Adds Gaussian noise to every pixel of an image
+ */
+public class NoiseAugmentation implements Augmentation {
+
+    private final double _standardDeviation;
+
+    /**
+     * @param standardDeviation the standard deviation of the noise, in the units of the pixel values
+     */
+    public NoiseAugmentation(double standardDeviation) {
+        if (standardDeviation < 0) {
+            throw new IllegalArgumentException("Standard deviation must be non-negative, was " + standardDeviation);
+        }
+
+        _standardDeviation = standardDeviation;
+    }
+
+    @Override
+    public void apply(double[] pixels, int offset, int rows, int cols, Random random) {
+        for (int i = offset; i < offset + rows * cols; i++) {
+            pixels[i] += random.nextGaussian() * _standardDeviation;
+        }
+    }
+}
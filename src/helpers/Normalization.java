@@ -0,0 +1,78 @@
+package helpers;
+
+import data.Image;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The mean and standard deviation of the pixel values of a set of images, used to z-score normalize them
+ * and any other image measured on the same scale: x' = (x - mean) / standard deviation.
+ *
+ * The statistics should come from the training images alone, and the same ones then applied to the test
+ * images and to any image the trained network is later asked about.
+ * @param mean the mean of the pixel values
+ * @param stdDev the population standard deviation of the pixel values
+ */
+public record Normalization(double mean, double stdDev) {
+
+    public Normalization {
+        if (!(stdDev > 0)) {
+            throw new IllegalArgumentException("Standard deviation must be positive, was " + stdDev);
+        }
+    }
+
+    /**
+     * Computes the statistics of the pixel values of a set of images
+     * @param images the raw images
+     * @return the mean and standard deviation of every pixel of every image
+     */
+    public static Normalization of(List<Image> images) {
+        if (images.isEmpty()) {
+            throw new IllegalArgumentException("No images to normalize");
+        }
+
+        double[] values = images.stream()
+                .flatMap(image -> Arrays.stream(image.getData()))
+                .flatMapToDouble(Arrays::stream)
+                .toArray();
+
+        double mean = Arrays.stream(values).average().getAsDouble();
+        double stdDev = Math.sqrt(Arrays.stream(values).map(d -> Math.pow(d - mean, 2)).average().getAsDouble());
+        return new Normalization(mean, stdDev);
+    }
+
+    /**
+     * Normalizes one raw pixel value
+     * @param value the raw value
+     * @return the normalized value
+     */
+    public double apply(double value) {
+        return (value - mean) / stdDev;
+    }
+
+    /**
+     * Normalizes a set of images, leaving the raw images unchanged
+     * @param images the raw images
+     * @return normalized copies of the images, in the same order
+     */
+    public List<Image> apply(List<Image> images) {
+        List<Image> normalized = new ArrayList<>(images.size());
+
+        for (Image image : images) {
+            double[][] data = image.getData();
+            double[][] copy = new double[data.length][];
+
+            for (int i = 0; i < data.length; i++) {
+                copy[i] = new double[data[i].length];
+                for (int j = 0; j < data[i].length; j++) {
+                    copy[i][j] = apply(data[i][j]);
+                }
+            }
+            normalized.add(new Image(copy, image.getLabel()));
+        }
+
+        return normalized;
+    }
+}
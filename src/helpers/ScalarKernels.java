@@ -0,0 +1,75 @@
+package helpers;
+
+/**
+ * Kernels written as plain loops, left to the JIT to optimize. Every operation adds up its terms
+ * in index order, so results do not depend on the hardware.
+ */
+public class ScalarKernels implements Kernels {
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        double sum = 0.0;
+        for (int i = 0; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float sum = 0.0f;
+        for (int i = 0; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public void add(double[] x, int xOffset, double[] y, int yOffset, double[] out, int outOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = x[xOffset + i] + y[yOffset + i];
+        }
+    }
+
+    @Override
+    public void scale(double alpha, double[] x, int xOffset, double[] out, int outOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = x[xOffset + i] * alpha;
+        }
+    }
+
+    @Override
+    public void leakyReLU(double slope, double[] x, int xOffset, double[] out, int outOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            double value = x[xOffset + i];
+            out[outOffset + i] = value > 0 ? value : slope * value;
+        }
+    }
+
+    @Override
+    public void leakyReLUBackward(double slope, double[] z, int zOffset, double[] dLdO, int dLdOOffset,
+                                  double[] out, int outOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = dLdO[dLdOOffset + i] * (z[zOffset + i] > 0 ? 1.0 : slope);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package helpers;
+
+import data.Batch;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Reads an optical digits CSV file in batches without holding the data set in memory.
+ *
+ * The normalization statistics are computed when the loader is created, in a single pass over the
+ * file with Welford's algorithm, so nothing but a running mean and sum of squared deviations is kept.
+ * Each iteration then re-reads the file and yields z-score normalized batches one at a time.
+ * The images are read in file order; shuffling across the file is not possible without holding it.
+ * An iterator closes the file once it is exhausted or fails; one abandoned before then should be closed.
+ */
+public class StreamingDataLoader implements Iterable<Batch> {
+
+    private static final int ROWS = 8;
+    private static final int COLS = 8;
+
+    private final String _path;
+    private final int _batchSize;
+    private final Augmentation _augmentation;
+
+    private final long _count;
+    private final double _mean;
+    private final double _stdDev;
+
+    /**
+     * Creates a new loader and computes the normalization statistics of the file
+     * @param path the path to the file
+     * @param batchSize the maximum number of images in each batch
+     * @param augmentation the change made to a copy of every image, which follows the image, or null to
+     *                     read the images alone
+     */
+    public StreamingDataLoader(String path, int batchSize, Augmentation augmentation) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, was " + batchSize);
+        }
+
+        _path = path;
+        _batchSize = batchSize;
+        _augmentation = augmentation;
+
+        long count = 0;
+        double mean = 0;
+        double m2 = 0;
+
+        try (BufferedReader dataReader = new BufferedReader(new FileReader(path))) {
+            String line;
+
+            while ((line = dataReader.readLine()) != null) {
+                String[] lineItems = line.split(",");
+
+                for (int i = 0; i < ROWS * COLS; i++) {
+                    double value = Integer.parseInt(lineItems[i]);
+
+                    // Welford's update of the running mean and sum of squared deviations
+                    count++;
+                    double delta = value - mean;
+                    mean += delta / count;
+                    m2 += delta * (value - mean);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("File not found " + path, e);
+        }
+
+        if (count == 0) {
+            throw new IllegalArgumentException("No images in " + path);
+        }
+
+        _count = count / (ROWS * COLS);
+        _mean = mean;
+        _stdDev = Math.sqrt(m2 / count);
+    }
+
+    /**
+     * Returns the number of images in the file, not counting augmented copies
+     * @return the number of lines in the file
+     */
+    public long size() {
+        return _count;
+    }
+
+    public double getMean() {
+        return _mean;
+    }
+
+    public double getStdDev() {
+        return _stdDev;
+    }
+
+    /**
+     * Opens the file and returns its normalized images in batches. Every call reads the file from the start,
+     * so each epoch of training can iterate the loader again.
+     * @return an iterator over the batches of the file, which closes the file once exhausted
+     */
+    @Override
+    public BatchIterator iterator() {
+        try {
+            return new BatchIterator(new BufferedReader(new FileReader(_path)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open " + _path, e);
+        }
+    }
+
+    /**
+     * Reads the batches of one pass over the file
+     */
+    public final class BatchIterator implements Iterator<Batch>, Closeable {
+
+        private final BufferedReader _reader;
+        private final Random _random = new Random();
+        private Batch _next;
+
+        // An image whose augmented copy did not fit in the last batch, so the copy starts the next one
+        private double[][] _pendingData;
+        private int _pendingLabel;
+
+        private BatchIterator(BufferedReader reader) {
+            _reader = reader;
+            _next = readBatch();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return _next != null;
+        }
+
+        @Override
+        public Batch next() {
+            if (_next == null) {
+                throw new NoSuchElementException();
+            }
+
+            Batch batch = _next;
+            _next = readBatch();
+            return batch;
+        }
+
+        /**
+         * Closes the file, ending the iteration early
+         */
+        @Override
+        public void close() throws IOException {
+            _next = null;
+            _pendingData = null;
+            _reader.close();
+        }
+
+        /**
+         * Reads the next batch from the file, closing it if it is exhausted or cannot be read
+         * @return the batch, or null once the file is exhausted
+         */
+        private Batch readBatch() {
+            Batch batch = new Batch(_batchSize, ROWS, COLS);
+
+            if (_pendingData != null) {
+                addAugmented(batch, _pendingData, _pendingLabel);
+                _pendingData = null;
+            }
+
+            try {
+                String line;
+                while (!batch.isFull() && (line = _reader.readLine()) != null) {
+                    String[] lineItems = line.split(",");
+                    double[][] data = new double[ROWS][COLS];
+                    int label = Integer.parseInt(lineItems[lineItems.length - 1]);
+
+                    int i = 0;
+                    for (int row = 0; row < ROWS; row++) {
+                        for (int col = 0; col < COLS; col++) {
+                            data[row][col] = (Integer.parseInt(lineItems[i]) - _mean) / _stdDev;
+                            i++;
+                        }
+                    }
+
+                    batch.add(data, label);
+
+                    // Every image keeps its copy whatever the batch size, so a full batch passes it on
+                    if (_augmentation != null) {
+                        if (batch.isFull()) {
+                            _pendingData = data;
+                            _pendingLabel = label;
+                        } else {
+                            addAugmented(batch, data, label);
+                        }
+                    }
+                }
+
+                if (batch.size() == 0) {
+                    _reader.close();
+                    return null;
+                }
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(e);
+                if (e instanceof IOException) {
+                    throw new UncheckedIOException("Could not read " + _path, (IOException) e);
+                }
+                throw (RuntimeException) e;
+            }
+
+            return batch;
+        }
+
+        /**
+         * Appends a copy of an image to the batch and augments the copy where it lies
+         */
+        private void addAugmented(Batch batch, double[][] data, int label) {
+            batch.add(data, label);
+            _augmentation.apply(batch.getPixels(), (batch.size() - 1) * ROWS * COLS, ROWS, COLS, _random);
+        }
+
+        private void closeQuietly(Exception cause) {
+            try {
+                _reader.close();
+            } catch (IOException e) {
+                cause.addSuppressed(e);
+            }
+        }
+    }
+}
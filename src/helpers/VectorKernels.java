@@ -0,0 +1,163 @@
+package helpers;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels written with the incubating Vector API, processing as many doubles per instruction as the
+ * hardware's widest vector registers hold (4 with AVX2, 8 with AVX-512, and twice as many floats) and
+ * finishing each range with a scalar tail. Dot products are summed lane by lane and reduced at the end, and multiply-adds are
+ * fused, so results can differ from {@link ScalarKernels} in the last bits.
+ *
+ * Only loaded through {@link Kernels#INSTANCE}, and only when the {@code jdk.incubator.vector} module is present.
+ */
+public class VectorKernels implements Kernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public String getName() {
+        return "vector";
+    }
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        int upper = SPECIES.loopBound(length);
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOffset + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset + i);
+            sums = va.fma(vb, sums);
+        }
+
+        double sum = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        int upper = SPECIES.loopBound(length);
+        DoubleVector va = DoubleVector.broadcast(SPECIES, alpha);
+
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOffset + i);
+            DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOffset + i);
+            vx.fma(va, vy).intoArray(y, yOffset + i);
+        }
+
+        for (; i < length; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        int upper = FLOATS.loopBound(length);
+        FloatVector sums = FloatVector.zero(FLOATS);
+
+        int i = 0;
+        for (; i < upper; i += FLOATS.length()) {
+            FloatVector va = FloatVector.fromArray(FLOATS, a, aOffset + i);
+            FloatVector vb = FloatVector.fromArray(FLOATS, b, bOffset + i);
+            sums = va.fma(vb, sums);
+        }
+
+        float sum = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+        int upper = FLOATS.loopBound(length);
+        FloatVector va = FloatVector.broadcast(FLOATS, alpha);
+
+        int i = 0;
+        for (; i < upper; i += FLOATS.length()) {
+            FloatVector vx = FloatVector.fromArray(FLOATS, x, xOffset + i);
+            FloatVector vy = FloatVector.fromArray(FLOATS, y, yOffset + i);
+            vx.fma(va, vy).intoArray(y, yOffset + i);
+        }
+
+        for (; i < length; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public void add(double[] x, int xOffset, double[] y, int yOffset, double[] out, int outOffset, int length) {
+        int upper = SPECIES.loopBound(length);
+
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOffset + i);
+            DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOffset + i);
+            vx.add(vy).intoArray(out, outOffset + i);
+        }
+
+        for (; i < length; i++) {
+            out[outOffset + i] = x[xOffset + i] + y[yOffset + i];
+        }
+    }
+
+    @Override
+    public void scale(double alpha, double[] x, int xOffset, double[] out, int outOffset, int length) {
+        int upper = SPECIES.loopBound(length);
+
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, x, xOffset + i).mul(alpha).intoArray(out, outOffset + i);
+        }
+
+        for (; i < length; i++) {
+            out[outOffset + i] = x[xOffset + i] * alpha;
+        }
+    }
+
+    @Override
+    public void leakyReLU(double slope, double[] x, int xOffset, double[] out, int outOffset, int length) {
+        int upper = SPECIES.loopBound(length);
+
+        // With a slope below 1, x > 0 ? x : slope * x is max(x, slope * x)
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOffset + i);
+            vx.max(vx.mul(slope)).intoArray(out, outOffset + i);
+        }
+
+        for (; i < length; i++) {
+            double value = x[xOffset + i];
+            out[outOffset + i] = value > 0 ? value : slope * value;
+        }
+    }
+
+    @Override
+    public void leakyReLUBackward(double slope, double[] z, int zOffset, double[] dLdO, int dLdOOffset,
+                                  double[] out, int outOffset, int length) {
+        int upper = SPECIES.loopBound(length);
+
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            DoubleVector vz = DoubleVector.fromArray(SPECIES, z, zOffset + i);
+            DoubleVector vd = DoubleVector.fromArray(SPECIES, dLdO, dLdOOffset + i);
+            VectorMask<Double> positive = vz.compare(VectorOperators.GT, 0.0);
+            vd.mul(slope).blend(vd, positive).intoArray(out, outOffset + i);
+        }
+
+        for (; i < length; i++) {
+            out[outOffset + i] = dLdO[dLdOOffset + i] * (z[zOffset + i] > 0 ? 1.0 : slope);
+        }
+    }
+}
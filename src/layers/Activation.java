@@ -0,0 +1,71 @@
+package layers;
+
+/**
+ * The function a layer applies to each of its pre-activations z to produce its outputs
+ */
+public interface Activation {
+
+    /**
+     * Leaky ReLU with a slope of 0.01 for negative inputs, the network's default
+     */
+    Activation LEAKY_RELU = new LeakyReLU(0.01);
+
+    /**
+     * ReLU, zero for negative inputs
+     */
+    Activation RELU = new LeakyReLU(0);
+
+    /**
+     * The logistic sigmoid
+     */
+    Activation SIGMOID = new Sigmoid();
+
+    /**
+     * The hyperbolic tangent
+     */
+    Activation TANH = new Tanh();
+
+    /**
+     * Applies the activation to a single value
+     * @param z the pre-activation
+     * @return the activation
+     */
+    double apply(double z);
+
+    /**
+     * Returns the derivative of the activation
+     * @param z the pre-activation
+     * @return the derivative of the activation at z
+     */
+    double derivative(double z);
+
+    /**
+     * Applies the activation to a range of pre-activations
+     * @param z the pre-activations
+     * @param zOffset the start of the range in z
+     * @param out the array written to, which may be z
+     * @param outOffset the start of the range in out
+     * @param length the length of the ranges
+     */
+    default void forward(double[] z, int zOffset, double[] out, int outOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = apply(z[zOffset + i]);
+        }
+    }
+
+    /**
+     * Back propagates a range of errors through the activation, out = dLdO * f'(z)
+     * @param z the pre-activations of the forward pass
+     * @param zOffset the start of the range in z
+     * @param dLdO the error with respect to the activations
+     * @param dLdOOffset the start of the range in dLdO
+     * @param out the array written to, which may be dLdO
+     * @param outOffset the start of the range in out
+     * @param length the length of the ranges
+     */
+    default void backward(double[] z, int zOffset, double[] dLdO, int dLdOOffset, double[] out, int outOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = dLdO[dLdOOffset + i] * derivative(z[zOffset + i]);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package layers;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds the per-worker state of every layer of a network: the activations cached
+ * during the forward pass for use in back propagation, and the gradients accumulated
+ * until they are applied to the shared weights. Layers keep no per-sample state
+ * themselves, so each thread training the same network works on its own context.
+ */
+public class Context {
+
+    private final Object[] _states;
+
+    // Time spent in each layer's own forward and backward passes, by layer index, while timing is on
+    private final long[] _forwardNanos;
+    private final long[] _backwardNanos;
+    private boolean _timing;
+
+    /**
+     * Creates a new context for a linked network, with room for a single sample
+     * @param layers the layers of the network, in order
+     */
+    public Context(List<Layer> layers) {
+        this(layers, 1);
+    }
+
+    /**
+     * Creates a new context for a linked network. Every layer allocates its buffers for the given
+     * number of samples up front, so passes of up to that many samples do not allocate.
+     * @param layers the layers of the network, in order
+     * @param capacity the largest number of samples passed through the network at once
+     */
+    public Context(List<Layer> layers, int capacity) {
+        _states = new Object[layers.size()];
+        _forwardNanos = new long[layers.size()];
+        _backwardNanos = new long[layers.size()];
+
+        for (int i = 0; i < layers.size(); i++) {
+            _states[i] = layers.get(i).createState(capacity);
+        }
+    }
+
+    /**
+     * Returns the state of a layer in this context
+     * @param layer the layer
+     * @return the state created by the layer for this context
+     */
+    @SuppressWarnings("unchecked")
+    <T> T state(Layer layer) {
+        return (T) _states[layer._index];
+    }
+
+    /**
+     * Sets whether the layers time their passes in this context. Timing is off by default,
+     * which costs the layers a single check per pass.
+     * @param timing true to time every pass
+     */
+    public void setTiming(boolean timing) {
+        _timing = timing;
+    }
+
+    /**
+     * Returns the time a layer has spent in its own forward passes in this context,
+     * not counting the layers after it
+     * @param layer the position of the layer in the network
+     * @return the time in nanoseconds since the last reset
+     */
+    public long getForwardNanos(int layer) {
+        return _forwardNanos[layer];
+    }
+
+    /**
+     * Returns the time a layer has spent in its own backward passes in this context,
+     * not counting the layers before it
+     * @param layer the position of the layer in the network
+     * @return the time in nanoseconds since the last reset
+     */
+    public long getBackwardNanos(int layer) {
+        return _backwardNanos[layer];
+    }
+
+    /**
+     * Clears the time recorded for every layer
+     */
+    public void resetTimings() {
+        Arrays.fill(_forwardNanos, 0);
+        Arrays.fill(_backwardNanos, 0);
+    }
+
+    boolean isTiming() {
+        return _timing;
+    }
+
+    void addForwardNanos(Layer layer, long nanos) {
+        _forwardNanos[layer._index] += nanos;
+    }
+
+    void addBackwardNanos(Layer layer, long nanos) {
+        _backwardNanos[layer._index] += nanos;
+    }
+}
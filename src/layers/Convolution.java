@@ -1,17 +1,24 @@
 package layers;
 
-import java.util.ArrayList;
+import data.Tensor;
+import data.Workspace;
+import helpers.Kernels;
+
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
-import static helpers.MatrixUtility.add;
-import static helpers.MatrixUtility.multiply;
+import static helpers.MatrixUtility.gemm;
 
 public class Convolution extends Layer{
 
+    private static final Kernels KERNELS = Kernels.INSTANCE;
+
     private final long SEED;
 
-    private List<double[][]> _filters;
+    // Filters stored back to back, each as a filterSize x filterSize row-major block
+    private double[] _filters;
+    private final int _numFilters;
     private final int _filterSize;
     private final int _stepsize;
 
@@ -19,10 +26,33 @@ public class Convolution extends Layer{
     private final int _inRows;
     private final int _inCols;
     private final double _learningRate;
+    private final ConvolutionEngine _engine;
+
+    /**
+     * Per-worker state of a convolution layer
+     */
+    static class State {
+        // The input of the last forward pass
+        Tensor _lastInput;
+
+        // Sum of dL/dF over every sample since the last update, laid out like the filters
+        double[] _filterGradients;
 
-    private List<double[][]> _lastInput;
+        // Buffers for the output and the error for the previous layer
+        Workspace _output;
+        Workspace _inputGradients;
+
+        // Column matrix of one input and its gradients, for the im2col engine
+        double[] _columns;
+        double[] _columnGradients;
+    }
 
     public Convolution(int _filterSize, int _stepsize, int _inLength, int _inRows, int _inCols, long SEED, int numFilters, double learningRate) {
+        this(_filterSize, _stepsize, _inLength, _inRows, _inCols, SEED, numFilters, learningRate, ConvolutionEngine.DIRECT);
+    }
+
+    public Convolution(int _filterSize, int _stepsize, int _inLength, int _inRows, int _inCols, long SEED, int numFilters, double learningRate,
+                       ConvolutionEngine engine) {
         this._filterSize = _filterSize;
         this._stepsize = _stepsize;
         this._inLength = _inLength;
@@ -30,28 +60,19 @@ public class Convolution extends Layer{
         this._inCols = _inCols;
         this.SEED = SEED;
         _learningRate = learningRate;
+        _numFilters = numFilters;
+        _engine = engine;
 
         generateRandomFilters(numFilters);
 
     }
 
     private void generateRandomFilters(int numFilters){
-        List<double[][]> filters = new ArrayList<>();
+        double[] filters = new double[numFilters * _filterSize * _filterSize];
         Random random = new Random(SEED);
 
-        for(int n = 0; n < numFilters; n++) {
-            double[][] newFilter = new double[_filterSize][_filterSize];
-
-            for(int i = 0; i < _filterSize; i++){
-                for(int j = 0; j < _filterSize; j++){
-
-                    double value = random.nextGaussian();
-                    newFilter[i][j] = value;
-                }
-            }
-
-            filters.add(newFilter);
-
+        for(int k = 0; k < filters.length; k++) {
+            filters[k] = random.nextGaussian();
         }
 
         _filters = filters;
@@ -59,21 +80,54 @@ public class Convolution extends Layer{
     }
 
     /**
-     * This method performs a convolution operation between a 2D input matrix and a 2D filter.
-     * @param list The 2D input matrix
-     * @return The output matrix obtained by convolving the input matrix with the filter
+     * This method performs a convolution operation between every input feature map and every filter,
+     * for every sample of the batch.
+     * @param input The input feature maps
+     * @param context The context the input is cached in for back propagation, or null when inferring
+     * @return The feature maps obtained by convolving each input map with each filter
      */
-    public List<double[][]> convolutionForwardPass(List<double[][]> list){
-
-        _lastInput = list;
-
-        List<double[][]> output = new ArrayList<>();
+    public Tensor convolutionForwardPass(Tensor input, Context context){
+
+        // View the input in this layer's shape, whatever shape the previous layer produced
+        input = input.reshape(_inLength, _inRows, _inCols);
+
+        final int batch = input.getBatch();
+
+        // The im2col engine adds every filter's products into the output, so its buffer starts cleared
+        State state = null;
+        Tensor output;
+        if (context != null) {
+            state = context.state(this);
+            state._lastInput = input;
+            output = _engine == ConvolutionEngine.IM2COL ? state._output.zeroed(batch) : state._output.get(batch);
+        } else {
+            output = new Tensor(batch, getOutputLength(), getOutputRows(), getOutputCols());
+        }
 
-        for (double[][] doubles : list) {
-            for (double[][] filter : _filters) {
-                output.add(convolve(doubles, filter, _stepsize));
+        if (_engine == ConvolutionEngine.IM2COL) {
+            final int positions = getOutputRows() * getOutputCols();
+            final int filterElements = _filterSize * _filterSize;
+            double[] columns = state != null ? state._columns : new double[filterElements * positions];
+
+            // The outputs of every filter for one input form a numFilters x positions block,
+            // which is the product of the filters and the input's column matrix
+            for (int n = 0; n < batch; n++) {
+                for (int i = 0; i < _inLength; i++) {
+                    im2col(input.getData(), input.index(n, i, 0, 0), columns);
+                    gemm(false, false, _numFilters, positions, filterElements,
+                            _filters, 0, columns, 0, output.getData(), output.index(n, i * _numFilters, 0, 0));
+                }
+            }
+        } else {
+            for (int n = 0; n < batch; n++) {
+                for (int i = 0; i < _inLength; i++) {
+                    for (int f = 0; f < _numFilters; f++) {
+                        convolve(input.getData(), input.index(n, i, 0, 0), _inCols,
+                                _filters, f * _filterSize * _filterSize,
+                                output.getData(), output.index(n, i * _numFilters + f, 0, 0), getOutputRows(), getOutputCols());
+                    }
+                }
             }
-
         }
 
         return output;
@@ -82,262 +136,407 @@ public class Convolution extends Layer{
 
     /**
      * This method performs a convolution operation between a 2D input matrix and a 2D filter.
-     * The output matrix is calculated by sliding the filter over the input matrix with a specified step size,
+     * The output matrix is calculated by sliding the filter over the input matrix with the layer's step size,
      * and computing the dot product between the filter and the corresponding sub-matrix of the input.
-     * @param input The 2D input matrix
-     * @param filter The 2D filter matrix
-     * @param stepSize The step size for the convolution operation
-     * @return The output matrix obtained by convolving the input matrix with the filter
+     * @param input The backing array of the input matrix
+     * @param inOffset The index of the input matrix in its backing array
+     * @param inCols The number of columns in the input matrix
+     * @param filter The backing array of the filter
+     * @param fOffset The index of the filter in its backing array
+     * @param output The backing array the output matrix is written to
+     * @param outOffset The index of the output matrix in its backing array
+     * @param outRows The number of rows in the output matrix
+     * @param outCols The number of columns in the output matrix
      **/
-    private double[][] convolve(double[][] input, double[][] filter, int stepSize) {
-        // Calculate output matrix dimensions
-        int outRows = (input.length - filter.length) / stepSize + 1;
-        int outCols = (input[0].length - filter[0].length) / stepSize + 1;
+    private void convolve(double[] input, int inOffset, int inCols,
+                          double[] filter, int fOffset,
+                          double[] output, int outOffset, int outRows, int outCols) {
 
-        // Store the filter matrix
-        int fRows = filter.length;
-        int fCols = filter[0].length;
+        for (int i = 0; i < outRows; i++) {
+            convolveRow(input, inOffset, inCols, filter, fOffset, output, outOffset + i * outCols, i, outCols);
+        }
+    }
 
-        double[][] output = new double[outRows][outCols];
+    /**
+     * Computes a single row of the convolution of a 2D input matrix with a 2D filter, see {@link #convolve}
+     * @param input The backing array of the input matrix
+     * @param inOffset The index of the input matrix in its backing array
+     * @param inCols The number of columns in the input matrix
+     * @param filter The backing array of the filter
+     * @param fOffset The index of the filter in its backing array
+     * @param output The backing array the output row is written to
+     * @param outputRow The index of the output row in its backing array
+     * @param i The row of the output matrix to compute
+     * @param outCols The number of columns in the output matrix
+     */
+    void convolveRow(double[] input, int inOffset, int inCols,
+                     double[] filter, int fOffset,
+                     double[] output, int outputRow, int i, int outCols) {
 
-        for (int i = 0; i < outRows; i++) {
-            for (int j = 0; j < outCols; j++) {
-                double sum = 0.0;
+        if (_stepsize == 1) {
+            // Each filter element scales a contiguous run of an input row onto the output row,
+            // adding the terms of every output in the same order as the loop below
+            Arrays.fill(output, outputRow, outputRow + outCols, 0.0);
 
-                int rowOffset = i * stepSize;
-                int colOffset = j * stepSize;
+            for (int x = 0; x < _filterSize; x++) {
+                int inputRow = inOffset + (i + x) * inCols;
+                int filterRow = fOffset + x * _filterSize;
 
-                // Apply filter to input matrix at current position
-                for (int x = 0; x < fRows; x++) {
-                    int inputRowIndex = rowOffset + x;
+                for (int y = 0; y < _filterSize; y++) {
+                    KERNELS.axpy(filter[filterRow + y], input, inputRow + y, output, outputRow, outCols);
+                }
+            }
+            return;
+        }
 
-                    double[] inputRow = input[inputRowIndex];
-                    double[] filterRow = filter[x];
+        for (int j = 0; j < outCols; j++) {
+            double sum = 0.0;
 
-                    for (int y = 0; y < fCols; y++) {
-                        int inputColIndex = colOffset + y;
+            int rowOffset = i * _stepsize;
+            int colOffset = j * _stepsize;
 
-                        // Multiply filter value with corresponding input value and add to sum
-                        double value = filterRow[y] * inputRow[inputColIndex];
-                        sum += value;
-                    }
-                }
+            // Apply filter to input matrix at current position
+            for (int x = 0; x < _filterSize; x++) {
+                int inputRow = inOffset + (rowOffset + x) * inCols + colOffset;
+                int filterRow = fOffset + x * _filterSize;
 
-                output[i][j] = sum;
+                for (int y = 0; y < _filterSize; y++) {
+                    // Multiply filter value with corresponding input value and add to sum
+                    sum += filter[filterRow + y] * input[inputRow + y];
+                }
             }
-        }
 
-        return output;
+            output[outputRow + j] = sum;
+        }
     }
 
     /**
-     * Takes in a 2D array and returns a new 2D array that has been expanded by a step size.
-     * If the step size is 1, returns the input array. Otherwise, expands the input array
-     * by filling in the gaps with zeros.
-     * @param input the input 2D array to be expanded
-     * @return the expanded 2D array
-     **/
-    public double[][] spaceArray(double[][] input){
-
-        if(_stepsize == 1){
-            return input;
-        }
+     * Lowers one input matrix into a column matrix: row x * filterSize + y holds, for every output
+     * position, the input value that filter element (x, y) is multiplied with at that position.
+     * @param input The backing array of the input matrix
+     * @param inOffset The index of the input matrix in its backing array
+     * @param columns The filterSize^2 x (outRows * outCols) column matrix to fill
+     */
+    private void im2col(double[] input, int inOffset, double[] columns) {
+        final int outRows = getOutputRows();
+        final int outCols = getOutputCols();
+        final int positions = outRows * outCols;
 
-        int outRows = (input.length - 1)*_stepsize + 1;
-        int outCols = (input[0].length -1)*_stepsize+1;
+        for (int x = 0; x < _filterSize; x++) {
+            for (int y = 0; y < _filterSize; y++) {
+                int column = (x * _filterSize + y) * positions;
 
-        double[][] output = new double[outRows][outCols];
+                for (int r = 0; r < outRows; r++) {
+                    int inputRow = inOffset + (r * _stepsize + x) * _inCols + y;
 
-        for(int i = 0; i < input.length; i++){
-            for(int j = 0; j < input[0].length; j++){
-                output[i*_stepsize][j*_stepsize] = input[i][j];
+                    for (int c = 0; c < outCols; c++) {
+                        columns[column++] = input[inputRow + c * _stepsize];
+                    }
+                }
             }
         }
-
-        return output;
     }
 
+    /**
+     * Adds a column matrix of gradients back onto the input positions each column was read from,
+     * the inverse of {@link #im2col}
+     * @param columns The filterSize^2 x (outRows * outCols) column matrix
+     * @param output The backing array of the input gradient matrix
+     * @param outOffset The index of the input gradient matrix in its backing array
+     */
+    private void col2im(double[] columns, double[] output, int outOffset) {
+        final int outRows = getOutputRows();
+        final int outCols = getOutputCols();
+        final int positions = outRows * outCols;
 
-    @Override
-    public double[] getOutput(List<double[][]> input) {
-
-        List<double[][]> output = convolutionForwardPass(input);
+        for (int x = 0; x < _filterSize; x++) {
+            for (int y = 0; y < _filterSize; y++) {
+                int column = (x * _filterSize + y) * positions;
 
-        return _nextLayer.getOutput(output);
+                for (int r = 0; r < outRows; r++) {
+                    int outputRow = outOffset + (r * _stepsize + x) * _inCols + y;
 
+                    for (int c = 0; c < outCols; c++) {
+                        output[outputRow + c * _stepsize] += columns[column++];
+                    }
+                }
+            }
+        }
     }
 
     @Override
-    public double[] getOutput(double[] input) {
+    public Tensor getOutput(Tensor input, Context context) {
 
-        List<double[][]> matrixInput = vectorToMatrix(input, _inLength, _inRows, _inCols);
+        long start = startTimer(context);
+        Tensor output = convolutionForwardPass(input, context);
+        stopForwardTimer(context, start);
 
-        return getOutput(matrixInput);
-    }
+        return _nextLayer.getOutput(output, context);
 
-    @Override
-    public void backPropagation(double[] dLdO, int iteration) {
-        List<double[][]> matrixInput = vectorToMatrix(dLdO, _inLength, _inRows, _inCols);
-        backPropagation(matrixInput, iteration);
     }
 
     /**
      * Performs back propagation on the convolution layer by computing the gradients of the
      * filters and the errors for the previous layer.
-     * @param dLdO List of gradients of the loss with respect to the output of the layer.
-     * @param iteration The current iteration number of the training process.
+     * The gradient of a filter is the correlation of the last input with the output error,
+     * taken at the positions the filter visited (the error spaced out by the step size).
+     * The error for the previous layer is the full convolution of the output error with each filter,
+     * which is accumulated by scattering every error value back over the window it was computed from.
+     * Filter gradients are accumulated in the context until {@link #applyGradients} is called.
+     * The error for the previous layer is written to the context's buffer, so it is only valid until the next pass.
+     * @param dLdO Gradients of the loss with respect to the output of the layer.
+     * @param context The context used for the matching forward pass.
      */
     @Override
-    public void backPropagation(List<double[][]> dLdO, int iteration) {
+    public void backPropagation(Tensor dLdO, Context context) {
+
+        // View the error in this layer's output shape, whatever shape the next layer produced
+        dLdO = dLdO.reshape(getOutputLength(), getOutputRows(), getOutputCols());
+
+        long start = startTimer(context);
+        State state = context.state(this);
+        Tensor lastInputTensor = state._lastInput;
+
+        // Changes in each filter, accumulated over every input
+        double[] filterGradients = state._filterGradients;
+
+        // Error for the previous layer
+        Tensor dLdOPreviousLayer = state._inputGradients != null ? state._inputGradients.zeroed(dLdO.getBatch()) : null;
 
-        // Initialize list to store changes in each filter
-        List<double[][]> filtersDelta = new ArrayList<>();
-        for(int f = 0; f < _filters.size(); f++){
-            filtersDelta.add(new double[_filterSize][_filterSize]);
+        if (_engine == ConvolutionEngine.IM2COL) {
+            im2colBackPropagation(dLdO, lastInputTensor, filterGradients, dLdOPreviousLayer, state);
+        } else {
+            directBackPropagation(dLdO, lastInputTensor, filterGradients, dLdOPreviousLayer);
         }
 
-        // Initialize list to store error from previous layer
-        List<double[][]> dLdOPreviousLayer= new ArrayList<>();
+        stopBackwardTimer(context, start);
 
-        // Loop through each input in the previous layer
-        for(int i = 0; i < _lastInput.size(); i++){
+        // Recursively call backpropagation on previous layer
+        if(_previousLayer!= null){
+            _previousLayer.backPropagation(dLdOPreviousLayer, context);
+        }
+    }
+
+    /**
+     * Back propagation with the direct engine, see {@link #backPropagation}
+     * @param dLdO Gradients of the loss with respect to the output of the layer.
+     * @param lastInputTensor The input of the matching forward pass.
+     * @param filterGradients The filter gradients to add to.
+     * @param dLdOPreviousLayer The error for the previous layer to fill, or null if there is none.
+     */
+    private void directBackPropagation(Tensor dLdO, Tensor lastInputTensor, double[] filterGradients, Tensor dLdOPreviousLayer) {
+
+        final int batch = dLdO.getBatch();
+        final int outRows = getOutputRows();
+        final int outCols = getOutputCols();
+        final int filterElements = _filterSize * _filterSize;
 
-            // Initialize array to store error for this input
-            double[][] errorForInput = new double[_inRows][_inCols];
+        double[] error = dLdO.getData();
+        double[] lastInput = lastInputTensor.getData();
+
+        // Loop through each input in the previous layer, for every sample
+        for(int k = 0; k < batch * _inLength; k++){
+
+            int n = k / _inLength;
+            int i = k % _inLength;
+            int inOffset = lastInputTensor.index(n, i, 0, 0);
 
             // Loop through each filter in the current layer
-            for(int f = 0; f < _filters.size(); f++){
+            for(int f = 0; f < _numFilters; f++){
 
-                // Get the current filter and the error for the current filter
-                double[][] currFilter = _filters.get(f);
-                double[][] error = dLdO.get(i*_filters.size() + f);
+                int fOffset = f * filterElements;
+                int errorOffset = dLdO.index(n, i * _numFilters + f, 0, 0);
 
                 // Calculate delta for the current filter
-                double[][] spacedError = spaceArray(error);
-                double[][] dLdF = convolve(_lastInput.get(i), spacedError, 1);
-                double[][] delta = multiply(dLdF, _learningRate*-1);
+                for (int x = 0; x < _filterSize; x++) {
+                    for (int y = 0; y < _filterSize; y++) {
+                        double dLdF = 0.0;
+
+                        for (int r = 0; r < outRows; r++) {
+                            int inputRow = inOffset + (r * _stepsize + x) * _inCols + y;
+                            int errorRow = errorOffset + r * outCols;
+
+                            for (int c = 0; c < outCols; c++) {
+                                dLdF += lastInput[inputRow + c * _stepsize] * error[errorRow + c];
+                            }
+                        }
 
-                // Update filter delta for the current filter
-                double[][] newTotalDelta = add(filtersDelta.get(f), delta);
-                filtersDelta.set(f, newTotalDelta);
+                        filterGradients[fOffset + x * _filterSize + y] += dLdF;
+                    }
+                }
 
                 // Calculate error for the previous layer
-                double[][] flippedError = flipArrayHorizontal(flipArrayVertical(spacedError));
-                errorForInput = add(errorForInput, fullConvolve(currFilter, flippedError));
-            }
+                if (dLdOPreviousLayer != null) {
+                    double[] previous = dLdOPreviousLayer.getData();
+                    int previousOffset = dLdOPreviousLayer.index(n, i, 0, 0);
 
-            // Add the error for this input to the list of errors for the previous layer
-            dLdOPreviousLayer.add(errorForInput);
-        }
+                    for (int r = 0; r < outRows; r++) {
+                        for (int c = 0; c < outCols; c++) {
+                            double e = error[errorOffset + r * outCols + c];
 
-        // Update filters for the current layer
-        for(int f = 0; f < _filters.size(); f++){
-            double[][] modified = add(filtersDelta.get(f), _filters.get(f));
-            _filters.set(f,modified);
-        }
+                            for (int x = 0; x < _filterSize; x++) {
+                                int previousRow = previousOffset + (r * _stepsize + x) * _inCols + c * _stepsize;
 
-        // Recursively call backpropagation on previous layer
-        if(_previousLayer!= null){
-            _previousLayer.backPropagation(dLdOPreviousLayer, iteration);
+                                for (int y = 0; y < _filterSize; y++) {
+                                    previous[previousRow + y] += e * _filters[fOffset + x * _filterSize + y];
+                                }
+                            }
+                        }
+                    }
+                }
+            }
         }
     }
 
     /**
-     * Flips the array horizontally
-     * @param array the array to flip
-     * @return the flipped array
+     * Back propagation with the im2col engine. For each input, with E the numFilters x positions
+     * block of output errors and C the input's column matrix, the filter gradients are E * C^T and
+     * the gradients of the column matrix are F^T * E, which are scattered back onto the input.
+     * @param dLdO Gradients of the loss with respect to the output of the layer.
+     * @param lastInputTensor The input of the matching forward pass.
+     * @param filterGradients The filter gradients to add to.
+     * @param dLdOPreviousLayer The error for the previous layer to fill, or null if there is none.
+     * @param state The state holding the column buffers.
      */
-    public double[][] flipArrayHorizontal(double[][] array){
-        int rows = array.length;
-        int cols = array[0].length;
+    private void im2colBackPropagation(Tensor dLdO, Tensor lastInputTensor, double[] filterGradients, Tensor dLdOPreviousLayer,
+                                       State state) {
+
+        final int batch = dLdO.getBatch();
+        final int positions = getOutputRows() * getOutputCols();
+        final int filterElements = _filterSize * _filterSize;
+
+        double[] columns = state._columns;
+        double[] columnGradients = dLdOPreviousLayer != null ? state._columnGradients : null;
+
+        for (int n = 0; n < batch; n++) {
+            for (int i = 0; i < _inLength; i++) {
+                int errorOffset = dLdO.index(n, i * _numFilters, 0, 0);
 
-        double[][] output = new double[rows][cols];
+                im2col(lastInputTensor.getData(), lastInputTensor.index(n, i, 0, 0), columns);
+                gemm(false, true, _numFilters, filterElements, positions,
+                        dLdO.getData(), errorOffset, columns, 0, filterGradients, 0);
 
-        for(int i = 0; i < rows; i++){
-            System.arraycopy(array[i], 0, output[rows - i - 1], 0, cols);
+                if (columnGradients != null) {
+                    Arrays.fill(columnGradients, 0.0);
+                    gemm(true, false, filterElements, positions, _numFilters,
+                            _filters, 0, dLdO.getData(), errorOffset, columnGradients, 0);
+                    col2im(columnGradients, dLdOPreviousLayer.getData(), dLdOPreviousLayer.index(n, i, 0, 0));
+                }
+            }
         }
-        return output;
     }
 
     /**
-     * Flips the array vertically
-     * @param array the array to flip
-     * @return the flipped array
+     * Updates the filters with the average gradient of the batch
+     * @param contexts The contexts of every worker that took part in the batch.
+     * @param batchSize The total number of samples in the batch.
+     * @param iteration The current iteration number of the training process.
      */
-    public double[][] flipArrayVertical(double[][] array){
-        int rows = array.length;
-        int cols = array[0].length;
+    @Override
+    public void applyGradients(List<Context> contexts, int batchSize, int iteration) {
 
-        double[][] output = new double[rows][cols];
+        double[] filterGradients = contexts.get(0).<State>state(this)._filterGradients;
 
-        for(int i = 0; i < rows; i++){
-            for(int j = 0; j < cols; j++){
-                output[i][cols-j-1] = array[i][j];
+        for (int i = 1; i < contexts.size(); i++) {
+            State state = contexts.get(i).state(this);
+
+            for (int k = 0; k < filterGradients.length; k++) {
+                filterGradients[k] += state._filterGradients[k];
+                state._filterGradients[k] = 0;
             }
+            state._lastInput = null;
         }
-        return output;
+
+        recordGradients(filterGradients, batchSize);
+        updateFilters(filterGradients, batchSize);
+        contexts.get(0).<State>state(this)._lastInput = null;
     }
 
     /**
-     * Returns the full convolution of the input and filter matrices.
-     * The output matrix dimensions are input.length + filter.length + 1 and input[0].length + filter[0].length + 1.
-     *
-     * @param input the input matrix to convolve
-     * @param filter the filter matrix to convolve with the input
-     * @return the output matrix resulting from the full convolution of the input and filter
+     * Takes a gradient descent step on the filters and clears the gradients
+     * @param filterGradients The sum of the filter gradients of every sample in the batch, laid out like the filters.
+     * @param batchSize The total number of samples in the batch.
      */
-    private double[][] fullConvolve(double[][] input, double[][] filter) {
+    void updateFilters(double[] filterGradients, int batchSize) {
 
-        int outRows = (input.length + filter.length) + 1;
-        int outCols = (input[0].length + filter[0].length) + 1;
+        // Update filters for the current layer
+        for(int k = 0; k < _filters.length; k++){
+            _filters[k] -= filterGradients[k] * _learningRate / batchSize;
+            filterGradients[k] = 0;
+        }
+    }
 
-        int inRows = input.length;
-        int inCols = input[0].length;
 
-        int fRows = filter.length;
-        int fCols = filter[0].length;
+    @Override
+    protected Object createState(int capacity) {
+        State state = new State();
+        state._filterGradients = new double[_filters.length];
+        state._output = new Workspace(capacity, getOutputLength(), getOutputRows(), getOutputCols());
 
-        double[][] output = new double[outRows][outCols];
+        if (_previousLayer != null) {
+            state._inputGradients = new Workspace(capacity, _inLength, _inRows, _inCols);
+        }
 
-        int outRow = 0;
-        int outCol;
+        if (_engine == ConvolutionEngine.IM2COL) {
+            int columnsSize = _filterSize * _filterSize * getOutputRows() * getOutputCols();
+            state._columns = new double[columnsSize];
+            state._columnGradients = new double[columnsSize];
+        }
+        return state;
+    }
 
-        for(int i = -fRows + 1; i < inRows; i ++){
+    /**
+     * Returns the filters, stored back to back, each as a filterSize x filterSize row-major block
+     * @return the live filter array
+     */
+    double[] getFilters() {
+        return _filters;
+    }
 
-            outCol = 0;
+    @Override
+    public double[][] getParameters() {
+        return new double[][]{_filters};
+    }
 
-            for(int j = -fCols + 1; j < inCols; j++){
+    public long getSeed() {
+        return SEED;
+    }
 
-                double sum = 0.0;
+    public double getLearningRate() {
+        return _learningRate;
+    }
 
-                // Apply filter around this position
-                for(int x = 0; x < fRows; x++){
-                    for(int y = 0; y < fCols; y++){
-                        int inputRowIndex = i+x;
-                        int inputColIndex = j+y;
+    public ConvolutionEngine getEngine() {
+        return _engine;
+    }
 
-                        if(inputRowIndex >= 0 && inputColIndex >= 0 && inputRowIndex < inRows && inputColIndex < inCols){
-                            double value = filter[x][y] * input[inputRowIndex][inputColIndex];
-                            sum+= value;
-                        }
-                    }
-                }
+    public int getNumFilters() {
+        return _numFilters;
+    }
 
-                output[outRow][outCol] = sum;
-                outCol++;
-            }
+    public int getFilterSize() {
+        return _filterSize;
+    }
 
-            outRow++;
+    public int getStepSize() {
+        return _stepsize;
+    }
 
-        }
+    public int getInputLength() {
+        return _inLength;
+    }
 
-        return output;
+    public int getInputRows() {
+        return _inRows;
+    }
 
+    public int getInputCols() {
+        return _inCols;
     }
 
     @Override
     public int getOutputLength() {
-        return _filters.size()*_inLength;
+        return _numFilters*_inLength;
     }
 
     @Override
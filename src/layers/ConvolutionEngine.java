@@ -0,0 +1,18 @@
+package layers;
+
+/**
+ * The algorithm a {@link Convolution} layer uses for its forward and backward passes
+ */
+public enum ConvolutionEngine {
+
+    /**
+     * Slides each filter over each input directly
+     */
+    DIRECT,
+
+    /**
+     * Lowers the patches of each input into a column matrix (im2col) and runs the forward pass,
+     * the filter gradients and the input gradients as blocked matrix multiplications
+     */
+    IM2COL
+}
@@ -0,0 +1,333 @@
+package layers;
+
+import data.Tensor;
+import data.Workspace;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A convolution layer directly followed by a max pool layer, computed as one layer.
+ *
+ * The forward pass computes the convolution of each feature map a row at a time into a buffer of
+ * windowSize rows and pools the rows as soon as a window is complete, so the full convolution output
+ * is never written out; rows that no window covers are not computed at all. Only the max of each window
+ * and its position in the convolution output are kept. The backward pass routes each pooled error
+ * straight back through the stored position to the filter and the input patch that produced the max.
+ *
+ * The filters, learning rate and geometry are those of the wrapped {@link Convolution}, and the window
+ * and step size those of the wrapped {@link MaxPooling}; neither is linked into the network itself.
+ * The convolution is always computed directly, whatever engine the wrapped layer was given, which is why
+ * the network builder only fuses direct convolutions.
+ */
+public class ConvolutionMaxPooling extends Layer {
+
+    private final Convolution _convolution;
+    private final MaxPooling _pooling;
+
+    private final int _numFilters;
+    private final int _filterSize;
+    private final int _convStep;
+    private final int _inLength;
+    private final int _inRows;
+    private final int _inCols;
+    private final int _convRows;
+    private final int _convCols;
+    private final int _windowSize;
+    private final int _poolStep;
+
+    /**
+     * Per-worker state of a fused convolution and max pool layer
+     */
+    static class State {
+        // The input of the last forward pass
+        Tensor _lastInput;
+
+        // Position of each max in its convolution output map, row * convCols + col, by pooled output index
+        int[] _argmax;
+
+        // Sum of dL/dF over every sample since the last update, laid out like the filters
+        double[] _filterGradients;
+
+        // Buffers for the output, the error for the previous layer and the rows of the convolution
+        Workspace _output;
+        Workspace _inputGradients;
+        double[] _rows;
+        int[] _rowTags;
+    }
+
+    /**
+     * Fuses a convolution layer with the max pool layer that follows it
+     * @param convolution the convolution layer
+     * @param pooling the max pool layer, whose input is the output of the convolution layer
+     */
+    public ConvolutionMaxPooling(Convolution convolution, MaxPooling pooling) {
+        if (pooling.getMode() != PoolingMode.MAX) {
+            throw new IllegalArgumentException("Only a max pool layer can be fused with a convolution layer");
+        }
+        if (convolution.getOutputLength() != pooling.getOutputLength()
+                || (convolution.getOutputRows() - pooling.getWindowSize()) / pooling.getStepSize() + 1 != pooling.getOutputRows()
+                || (convolution.getOutputCols() - pooling.getWindowSize()) / pooling.getStepSize() + 1 != pooling.getOutputCols()) {
+            throw new IllegalArgumentException("Max pool layer does not match the output of the convolution layer");
+        }
+
+        _convolution = convolution;
+        _pooling = pooling;
+
+        _numFilters = convolution.getNumFilters();
+        _filterSize = convolution.getFilterSize();
+        _convStep = convolution.getStepSize();
+        _inLength = convolution.getInputLength();
+        _inRows = convolution.getInputRows();
+        _inCols = convolution.getInputCols();
+        _convRows = convolution.getOutputRows();
+        _convCols = convolution.getOutputCols();
+        _windowSize = pooling.getWindowSize();
+        _poolStep = pooling.getStepSize();
+    }
+
+    public Convolution getConvolution() {
+        return _convolution;
+    }
+
+    public MaxPooling getPooling() {
+        return _pooling;
+    }
+
+    @Override
+    public double[][] getParameters() {
+        return _convolution.getParameters();
+    }
+
+    /**
+     * Convolves and max pools every feature map of every sample of the input
+     * @param input the input feature maps
+     * @param context the context the input and the position of each max are cached in, or null when inferring
+     * @return the pooled feature maps
+     */
+    public Tensor convolutionMaxPoolForwardPass(Tensor input, Context context) {
+
+        // View the input in this layer's shape, whatever shape the previous layer produced
+        input = input.reshape(_inLength, _inRows, _inCols);
+
+        final int batch = input.getBatch();
+
+        // Only windowSize rows of the convolution are kept at a time, tagged with the row they hold
+        State state = null;
+        Tensor output;
+        double[] rows;
+        int[] rowTags;
+        if (context != null) {
+            state = context.state(this);
+            state._lastInput = input;
+            output = state._output.get(batch);
+            rows = state._rows;
+            rowTags = state._rowTags;
+
+            if (state._argmax.length < output.size()) {
+                state._argmax = new int[output.size()];
+            }
+        } else {
+            output = new Tensor(batch, getOutputLength(), getOutputRows(), getOutputCols());
+            rows = new double[_windowSize * _convCols];
+            rowTags = new int[_windowSize];
+        }
+
+        final double[] filters = _convolution.getFilters();
+        final double[] in = input.getData();
+        final double[] out = output.getData();
+        final int outRows = getOutputRows();
+        final int outCols = getOutputCols();
+
+        for (int n = 0; n < batch; n++) {
+            for (int i = 0; i < _inLength; i++) {
+                int inOffset = input.index(n, i, 0, 0);
+
+                for (int f = 0; f < _numFilters; f++) {
+                    int fOffset = f * _filterSize * _filterSize;
+                    int o = output.index(n, i * _numFilters + f, 0, 0);
+                    Arrays.fill(rowTags, -1);
+
+                    for (int pi = 0; pi < outRows; pi++) {
+
+                        // Make sure every convolution row of this window row is in the buffer, slot row % windowSize
+                        for (int wr = 0; wr < _windowSize; wr++) {
+                            int convRow = pi * _poolStep + wr;
+                            int slot = convRow % _windowSize;
+
+                            if (rowTags[slot] != convRow) {
+                                _convolution.convolveRow(in, inOffset, _inCols, filters, fOffset,
+                                        rows, slot * _convCols, convRow, _convCols);
+                                rowTags[slot] = convRow;
+                            }
+                        }
+
+                        for (int pj = 0; pj < outCols; pj++, o++) {
+                            int firstRow = pi * _poolStep;
+                            int firstCol = pj * _poolStep;
+                            double max = rows[(firstRow % _windowSize) * _convCols + firstCol];
+                            int maxIndex = firstRow * _convCols + firstCol;
+
+                            // Find the maximum value in the window, the first one in row-major order on ties
+                            for (int wr = 0; wr < _windowSize; wr++) {
+                                int convRow = firstRow + wr;
+                                int slot = (convRow % _windowSize) * _convCols;
+
+                                for (int wc = 0; wc < _windowSize; wc++) {
+                                    double value = rows[slot + firstCol + wc];
+                                    if (value > max) {
+                                        max = value;
+                                        maxIndex = convRow * _convCols + firstCol + wc;
+                                    }
+                                }
+                            }
+
+                            out[o] = max;
+                            if (state != null) {
+                                state._argmax[o - output.getOffset()] = maxIndex;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return output;
+    }
+
+    @Override
+    public Tensor getOutput(Tensor input, Context context) {
+        long start = startTimer(context);
+        Tensor output = convolutionMaxPoolForwardPass(input, context);
+        stopForwardTimer(context, start);
+        return _nextLayer.getOutput(output, context);
+    }
+
+    /**
+     * Back propagation through the max pool and the convolution. Only the convolution output at the max
+     * of each window receives an error, so each pooled error is multiplied with the input patch the max was
+     * computed from to get the filter gradients, and scattered back over that patch through the filter
+     * to get the error for the previous layer.
+     * @param dLdO Gradients of the loss with respect to the pooled output.
+     * @param context The context used for the matching forward pass.
+     */
+    @Override
+    public void backPropagation(Tensor dLdO, Context context) {
+
+        // View the error in this layer's output shape, whatever shape the next layer produced
+        dLdO = dLdO.reshape(getOutputLength(), getOutputRows(), getOutputCols());
+
+        long start = startTimer(context);
+        State state = context.state(this);
+        Tensor lastInput = state._lastInput;
+        double[] filterGradients = state._filterGradients;
+        Tensor dLdX = state._inputGradients != null ? state._inputGradients.zeroed(dLdO.getBatch()) : null;
+
+        final double[] filters = _convolution.getFilters();
+        final double[] in = lastInput.getData();
+        final double[] error = dLdO.getData();
+        final int outputSize = getOutputRows() * getOutputCols();
+
+        for (int n = 0; n < dLdO.getBatch(); n++) {
+            for (int i = 0; i < _inLength; i++) {
+                int inOffset = lastInput.index(n, i, 0, 0);
+                int previousOffset = dLdX != null ? dLdX.index(n, i, 0, 0) : 0;
+
+                for (int f = 0; f < _numFilters; f++) {
+                    int fOffset = f * _filterSize * _filterSize;
+                    int o = dLdO.index(n, i * _numFilters + f, 0, 0);
+                    int k = o - dLdO.getOffset();
+
+                    for (int p = 0; p < outputSize; p++) {
+                        double e = error[o + p];
+                        int convRow = state._argmax[k + p] / _convCols;
+                        int convCol = state._argmax[k + p] % _convCols;
+                        int patch = (convRow * _convStep) * _inCols + convCol * _convStep;
+
+                        for (int x = 0; x < _filterSize; x++) {
+                            int patchRow = patch + x * _inCols;
+                            int filterRow = fOffset + x * _filterSize;
+
+                            for (int y = 0; y < _filterSize; y++) {
+                                filterGradients[filterRow + y] += e * in[inOffset + patchRow + y];
+                                if (dLdX != null) {
+                                    dLdX.getData()[previousOffset + patchRow + y] += e * filters[filterRow + y];
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        stopBackwardTimer(context, start);
+
+        // Recursively call backpropagation on previous layer
+        if (_previousLayer != null) {
+            _previousLayer.backPropagation(dLdX, context);
+        }
+    }
+
+    /**
+     * Updates the filters of the wrapped convolution with the average gradient of the batch
+     * @param contexts The contexts of every worker that took part in the batch.
+     * @param batchSize The total number of samples in the batch.
+     * @param iteration The current iteration number of the training process.
+     */
+    @Override
+    public void applyGradients(List<Context> contexts, int batchSize, int iteration) {
+
+        State first = contexts.get(0).state(this);
+        double[] filterGradients = first._filterGradients;
+
+        for (int c = 1; c < contexts.size(); c++) {
+            State state = contexts.get(c).state(this);
+
+            for (int k = 0; k < filterGradients.length; k++) {
+                filterGradients[k] += state._filterGradients[k];
+                state._filterGradients[k] = 0;
+            }
+            state._lastInput = null;
+        }
+
+        recordGradients(filterGradients, batchSize);
+        _convolution.updateFilters(filterGradients, batchSize);
+        first._lastInput = null;
+    }
+
+
+    @Override
+    protected Object createState(int capacity) {
+        State state = new State();
+        state._filterGradients = new double[_convolution.getFilters().length];
+        state._output = new Workspace(capacity, getOutputLength(), getOutputRows(), getOutputCols());
+        state._argmax = new int[Math.max(capacity, 1) * getOutputElements()];
+        state._rows = new double[_windowSize * _convCols];
+        state._rowTags = new int[_windowSize];
+
+        if (_previousLayer != null) {
+            state._inputGradients = new Workspace(capacity, _inLength, _inRows, _inCols);
+        }
+        return state;
+    }
+
+    @Override
+    public int getOutputLength() {
+        return _pooling.getOutputLength();
+    }
+
+    @Override
+    public int getOutputRows() {
+        return _pooling.getOutputRows();
+    }
+
+    @Override
+    public int getOutputCols() {
+        return _pooling.getOutputCols();
+    }
+
+    @Override
+    public int getOutputElements() {
+        return _pooling.getOutputElements();
+    }
+}
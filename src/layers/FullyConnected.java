@@ -1,132 +1,236 @@
 package layers;
 
+import data.Tensor;
+import data.Workspace;
+import helpers.Kernels;
+
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
+import static helpers.MatrixUtility.matrixMultiply;
+import static helpers.MatrixUtility.matrixMultiplyTransposeA;
+import static helpers.MatrixUtility.matrixMultiplyTransposeB;
+
 public class FullyConnected extends Layer{
 
+    private static final Kernels KERNELS = Kernels.INSTANCE;
+
     private final long SEED;
 
-    private final double[][] _weights;
+    // Weights stored as a row-major outLength x inLength matrix, so each output is a dot product of two contiguous rows
+    private final double[] _weights;
+    private final double[] _biases;
     private final int _inLength;
     private final int _outLength;
     private final double _learningRate;
+    private final Activation _activation;
 
-    private double[] lastZ;
-    private double[] lastX;
+    /**
+     * Per-worker state of a fully connected layer
+     */
+    static class State {
+        // The input and the dot product of the last forward pass
+        Tensor lastX;
+        Tensor lastZ;
+
+        // Sum of dL/dw and dL/db over every sample since the last update, laid out like the weights and biases
+        double[] weightGradients;
+        double[] biasGradients;
+
+        // Buffers for the dot product, the output, dL/dz and the error for the previous layer
+        Workspace z;
+        Workspace out;
+        Workspace dLdz;
+        Workspace dLdX;
+    }
 
 
     public FullyConnected(int _inLength, int _outLength, long SEED, double learningRate) {
+        this(_inLength, _outLength, SEED, learningRate, Activation.LEAKY_RELU, false);
+    }
+
+    /**
+     * Creates a new fully connected layer
+     * @param _inLength the number of inputs
+     * @param _outLength the number of outputs
+     * @param SEED the seed of the random initial weights
+     * @param learningRate the learning rate
+     * @param activation the activation applied to every output
+     * @param bias whether every output has a trained bias, starting at zero
+     */
+    public FullyConnected(int _inLength, int _outLength, long SEED, double learningRate, Activation activation, boolean bias) {
         this._inLength = _inLength;
         this._outLength = _outLength;
         this.SEED = SEED;
         this._learningRate = learningRate;
+        this._activation = activation;
 
-        _weights = new double[_inLength][_outLength];
+        _weights = new double[_inLength * _outLength];
+        _biases = bias ? new double[_outLength] : null;
         setRandomWeights();
     }
 
     /**
-     * Performs a forward pass on a fully connected layer.
+     * Performs a forward pass on a fully connected layer for a whole batch.
      * x -w-> z -f-> y <- dL/dy
+     * Every sample of the input is read as a flat vector, so the batch is an N x inLength
+     * matrix and the pre-activations are computed as one matrix-matrix product Z = X * W^T + b,
+     * each element a dot product of an input row and a weight row. The activation is then
+     * applied once to every element of Z.
      * @param input The input to the layer
-     * @return The output of the layer
+     * @param context The context the input and dot product are cached in for back propagation, or null when inferring
+     * @return The output of the layer, one vector of outLength values per sample
      */
-    public double[] fullyConnectedForwardPass(double[] input){
-
-        lastX = input;
+    public Tensor fullyConnectedForwardPass(Tensor input, Context context){
 
-        double[] z = new double[_outLength];
-        double[] out = new double[_outLength];
+        final int batch = input.getBatch();
 
-        // For each input node, calculate the dot product with the
-        // weights and apply activation function.
-        for(int currentInputIndex = 0; currentInputIndex < _inLength; currentInputIndex++){
-            for(int currentOutputIndex = 0; currentOutputIndex < _outLength; currentOutputIndex++){
-                // Calculate the dot product of the input and the weights
-                z[currentOutputIndex] += input[currentInputIndex] * _weights[currentInputIndex][currentOutputIndex];
+        State state = context != null ? context.state(this) : null;
+        Tensor z = state != null ? state.z.get(batch) : new Tensor(batch, _outLength, 1, 1);
+        Tensor out = state != null ? state.out.get(batch) : new Tensor(batch, _outLength, 1, 1);
 
-                // Apply activation function
-                out[currentOutputIndex] = leakyReLU(z[currentOutputIndex]);
+        // Calculate the dot product of every input with the weights
+        matrixMultiplyTransposeB(input.getData(), input.getOffset(), _weights, 0, z.getData(), 0, batch, _outLength, _inLength);
+        if (_biases != null) {
+            for (int n = 0; n < batch; n++) {
+                KERNELS.add(z.getData(), n * _outLength, _biases, 0, z.getData(), n * _outLength, _outLength);
             }
         }
 
-        // Store the dot product for use in backpropagation
-        lastZ = z;
+        // Apply activation function
+        _activation.forward(z.getData(), 0, out.getData(), 0, out.size());
 
-        return out;
+        // Store the input and dot product for use in backpropagation
+        if (state != null) {
+            state.lastX = input;
+            state.lastZ = z;
+        }
 
-    }
+        return out;
 
-    @Override
-    public double[] getOutput(List<double[][]> input) {
-        double[] vector = matrixToVector(input);
-        return getOutput(vector);
     }
 
     @Override
-    public double[] getOutput(double[] input) {
-        return fullyConnectedForwardPass(input);
+    public Tensor getOutput(Tensor input, Context context) {
+        long start = startTimer(context);
+        Tensor output = fullyConnectedForwardPass(input, context);
+        stopForwardTimer(context, start);
+        return output;
     }
 
     /**
      * Performs a backpropagation step on a fully connected layer.
-     * @param dLdO The derivative of the loss with respect to the output of the layer
+     * The weight gradients of the whole batch are accumulated in the context with dL/dW = dL/dz^T * X
+     * and the error for the previous layer is dL/dX = dL/dz * W.
+     * @param error The derivative of the loss with respect to the output of the layer
+     * @param context The context used for the matching forward pass
      */
     @Override
-    public void backPropagation(double[] dLdO, int iteration) {
+    public void backPropagation(Tensor error, Context context) {
 
-        double[] dLdX = new double[_inLength];
+        long start = startTimer(context);
+        State state = context.state(this);
 
-        double dOdz;
-        double dzdw;
-        double dLdw;
-        double dzdx;
+        final int batch = error.getBatch();
+        final double[] dLdO = error.getData();
+        final int dLdOOffset = error.getOffset();
+        final double[] z = state.lastZ.getData();
 
-        // Calculate the adaptive learning rate based on the current iteration
-        double alpha = 0.5 / (1 + iteration / 1000);
-        double currentLearningRate = alpha * _learningRate;
+        // Calculate the gradient of the loss with respect to the dot product (dLdz) using the chain rule
+        double[] dLdz = state.dLdz.get(batch).getData();
+        _activation.backward(z, 0, dLdO, dLdOOffset, dLdz, 0, batch * _outLength);
+
+        // Calculate the gradient of the loss with respect to the input of this layer
+        Tensor dLdX = null;
+        if (_previousLayer != null) {
+            dLdX = state.dLdX.get(batch);
+            matrixMultiply(dLdz, 0, _weights, 0, dLdX.getData(), 0, batch, _outLength, _inLength);
+        }
 
-        for(int k = 0; k < _inLength; k++){
+        // Add the gradient of the loss with respect to the weights, summed over the batch
+        matrixMultiplyTransposeA(dLdz, 0, state.lastX.getData(), state.lastX.getOffset(),
+                state.weightGradients, 0, batch, _outLength, _inLength);
 
-            // Initialize a variable to store the sum of the gradients of the loss with respect
-            // to the output of this layer (dLdO) times the derivatives of the output
-            // with respect to the input (dOdz) times the weights (dzdw)
-            double dLdX_sum = 0;
+        // The gradient of the loss with respect to each bias is its dL/dz, summed over the batch
+        if (_biases != null) {
+            for (int n = 0; n < batch; n++) {
+                KERNELS.add(state.biasGradients, 0, dLdz, n * _outLength, state.biasGradients, 0, _outLength);
+            }
+        }
 
-            for(int j = 0; j < _outLength; j++){
+        stopBackwardTimer(context, start);
+
+        if (_previousLayer != null) _previousLayer.backPropagation(dLdX, context);
+    }
 
-                // Calculate the derivative of the output of this layer with respect to the input (dOdz), the derivative of
-                // the input of this layer with respect to the weight (dzdw), and the derivative of the output
-                // of this layer with respect to the weight (dzdx)
-                dOdz = derivativeLeakyReLU(lastZ[j]);
-                dzdw = lastX[k];
-                dzdx = _weights[k][j];
+    /**
+     * Updates the weights and biases with the average gradient of the batch, lowering the learning rate
+     * every 1000 iterations
+     * @param contexts The contexts of every worker that took part in the batch
+     * @param batchSize The total number of samples in the batch
+     * @param iteration The current iteration number of the training process
+     */
+    @Override
+    public void applyGradients(List<Context> contexts, int batchSize, int iteration) {
 
-                // Calculate the gradient of the loss with respect to the weight (dLdw) using the chain rule
-                dLdw = dLdO[j]*dOdz*dzdw;
+        // Calculate the adaptive learning rate based on the current iteration
+        double alpha = 0.5 / (1 + iteration / 1000);
+        double currentLearningRate = alpha * _learningRate;
 
-                // Update the weight using the gradient descent algorithm with the calculated learning rate
-                _weights[k][j] -= dLdw * currentLearningRate;
+        State first = contexts.get(0).state(this);
+        double[] dLdw = first.weightGradients;
 
-                // Add the gradient of the loss with respect to the output of this layer times the derivatives
-                // of the output with respect to the input and the weight to the sum
-                dLdX_sum += dLdO[j]*dOdz*dzdx;
+        for (int c = 1; c < contexts.size(); c++) {
+            State state = contexts.get(c).state(this);
 
+            for(int i = 0; i < dLdw.length; i++){
+                dLdw[i] += state.weightGradients[i];
+                state.weightGradients[i] = 0;
             }
-
-            // Store the sum of the gradients of the loss with respect to the output of this layer
-            // times the derivatives of the output with respect to the input and the weight in the dLdX array
-            dLdX[k] = dLdX_sum;
+            if (_biases != null) {
+                for (int o = 0; o < _outLength; o++) {
+                    first.biasGradients[o] += state.biasGradients[o];
+                }
+                Arrays.fill(state.biasGradients, 0.0);
+            }
+            state.lastX = null;
+            state.lastZ = null;
         }
 
-        if (_previousLayer != null) _previousLayer.backPropagation(dLdX, iteration);
+        recordGradients(dLdw, first.biasGradients, batchSize);
+
+        // Update the weights using the gradient descent algorithm with the calculated learning rate
+        for(int i = 0; i < dLdw.length; i++){
+            _weights[i] -= dLdw[i] / batchSize * currentLearningRate;
+            dLdw[i] = 0;
+        }
+        if (_biases != null) {
+            for (int o = 0; o < _outLength; o++) {
+                _biases[o] -= first.biasGradients[o] / batchSize * currentLearningRate;
+            }
+            Arrays.fill(first.biasGradients, 0.0);
+        }
+        first.lastX = null;
+        first.lastZ = null;
     }
 
+
     @Override
-    public void backPropagation(List<double[][]> dLdO, int iteration) {
-        double[] vector = matrixToVector(dLdO);
-        backPropagation(vector, iteration);
+    protected Object createState(int capacity) {
+        State state = new State();
+        state.weightGradients = new double[_weights.length];
+        state.biasGradients = _biases != null ? new double[_outLength] : null;
+        state.z = new Workspace(capacity, _outLength, 1, 1);
+        state.out = new Workspace(capacity, _outLength, 1, 1);
+        state.dLdz = new Workspace(capacity, _outLength, 1, 1);
+        // The error for the previous layer is shaped like that layer's output, so it needs no reshaping
+        if (_previousLayer != null && _previousLayer.getOutputElements() == _inLength && _previousLayer.getOutputLength() > 0) {
+            state.dLdX = new Workspace(capacity, _previousLayer.getOutputLength(), _previousLayer.getOutputRows(), _previousLayer.getOutputCols());
+        } else {
+            state.dLdX = new Workspace(capacity, _inLength, 1, 1);
+        }
+        return state;
     }
 
     @Override
@@ -149,42 +253,40 @@ public class FullyConnected extends Layer{
         return _outLength;
     }
 
+    @Override
+    public double[][] getParameters() {
+        return _biases != null ? new double[][]{_weights, _biases} : new double[][]{_weights};
+    }
+
+    public Activation getActivation() {
+        return _activation;
+    }
+
+    public boolean hasBias() {
+        return _biases != null;
+    }
+
+    public long getSeed() {
+        return SEED;
+    }
+
+    public double getLearningRate() {
+        return _learningRate;
+    }
+
+    public int getInputLength() {
+        return _inLength;
+    }
+
     public void setRandomWeights(){
         Random random = new Random(SEED);
 
+        // Drawn input by input, so a seed gives the same weights whatever the storage layout
         for(int i = 0; i < _inLength; i++){
             for(int j =0; j < _outLength; j++){
-                _weights[i][j] = random.nextGaussian();
+                _weights[j * _inLength + i] = random.nextGaussian();
             }
         }
     }
 
-    /**
-     * Applies the leaky ReLU activation function to the input.
-     * @param input The input to the activation function
-     * @return The output of the activation function
-     */
-    public double leakyReLU(double input) {
-        final double alpha = 0.01;
-        if (input > 0) {
-            return input;
-        } else {
-            return alpha * input;
-        }
-    }
-
-    /**
-     * Calculates the derivative of the leaky ReLU activation function.
-     * @param input The input to the activation function
-     * @return The output of the activation function
-     */
-    public double derivativeLeakyReLU(double input) {
-        final double alpha = 0.01;
-        if (input > 0) {
-            return 1.0;
-        } else {
-            return alpha;
-        }
-    }
-
 }
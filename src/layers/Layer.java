@@ -1,6 +1,8 @@
 package layers;
 
-import java.util.ArrayList;
+import data.Tensor;
+import helpers.Kernels;
+
 import java.util.List;
 
 public abstract class Layer {
@@ -13,62 +15,166 @@ public abstract class Layer {
         this._previousLayer = _previousLayer;
     }
 
+    public void set_index(int _index) {
+        this._index = _index;
+    }
+
     protected Layer _nextLayer;
     protected Layer _previousLayer;
+    protected int _index;
+
+    // Sum and count of the norms of the averaged gradients of every update since the last reset, while recording
+    private boolean _recordGradients;
+    private double _gradientNormSum;
+    private int _gradientUpdates;
+
+    /**
+     * Sets whether the layer records the norm of its gradient at every update, off by default
+     * @param _recordGradients true to record the gradient norms
+     */
+    public void set_recordGradients(boolean _recordGradients) {
+        this._recordGradients = _recordGradients;
+    }
 
-    public abstract double[] getOutput(List<double[][]> input);
-    public abstract double[] getOutput(double[] input);
-
-    public abstract void backPropagation(double[] dLdO, int iteration);
-    public abstract void backPropagation(List<double[][]> dLdO, int iteration);
-
-    public abstract int getOutputLength();
-    public abstract int getOutputRows();
-    public abstract int getOutputCols();
-    public abstract int getOutputElements();
-
-
-    public double[] matrixToVector(List<double[][]> input){
-
-        int length = input.size();
-        int rows = input.get(0).length;
-        int cols = input.get(0)[0].length;
+    /**
+     * Returns the mean norm of the gradient this layer was updated with since the last reset
+     * @return the mean L2 norm of the batch-averaged gradient, or 0 if nothing was recorded
+     */
+    public double getGradientNorm() {
+        return _gradientUpdates > 0 ? _gradientNormSum / _gradientUpdates : 0.0;
+    }
 
-        double[] vector = new double[length*rows*cols];
+    /**
+     * Clears the recorded gradient norms
+     */
+    public void resetGradientNorm() {
+        _gradientNormSum = 0;
+        _gradientUpdates = 0;
+    }
 
-        int i = 0;
-        for (double[][] doubles : input) {
-            for (int r = 0; r < rows; r++) {
-                for (int c = 0; c < cols; c++) {
-                    vector[i] = doubles[r][c];
-                    i++;
-                }
-            }
+    /**
+     * Records the norm of a gradient about to be applied, if recording is on
+     * @param gradients the gradients summed over the batch
+     * @param batchSize the number of samples the gradients were summed over
+     */
+    protected void recordGradients(double[] gradients, int batchSize) {
+        if (_recordGradients) {
+            addGradientNorm(sumOfSquares(gradients), batchSize);
         }
-
-        return vector;
     }
 
-    List<double[][]> vectorToMatrix(double[] input, int length, int rows, int cols){
+    /**
+     * Records the norm of a gradient made of weight and bias gradients about to be applied, if recording is on
+     * @param weightGradients the weight gradients summed over the batch
+     * @param biasGradients the bias gradients summed over the batch, or null if the layer has no biases
+     * @param batchSize the number of samples the gradients were summed over
+     */
+    protected void recordGradients(double[] weightGradients, double[] biasGradients, int batchSize) {
+        if (_recordGradients) {
+            addGradientNorm(sumOfSquares(weightGradients) + (biasGradients != null ? sumOfSquares(biasGradients) : 0.0), batchSize);
+        }
+    }
 
-        List<double[][]> out = new ArrayList<>();
+    private void addGradientNorm(double sumOfSquares, int batchSize) {
+        _gradientNormSum += Math.sqrt(sumOfSquares) / batchSize;
+        _gradientUpdates++;
+    }
 
-        int i = 0;
-        for(int l = 0; l < length; l++ ){
+    private static double sumOfSquares(double[] values) {
+        return Kernels.INSTANCE.dot(values, 0, values, 0, values.length);
+    }
 
-            double[][] matrix = new double[rows][cols];
+    /**
+     * Starts timing a pass of this layer
+     * @param context the context of the pass, or null when inferring
+     * @return the start time, or 0 if the context is not timing
+     */
+    protected static long startTimer(Context context) {
+        return context != null && context.isTiming() ? System.nanoTime() : 0L;
+    }
 
-            for(int r = 0; r < rows; r++){
-                for(int c = 0; c < cols; c++){
-                    matrix[r][c] = input[i];
-                    i++;
-                }
-            }
+    /**
+     * Adds the time since a start time to this layer's forward time in the context
+     * @param context the context of the pass, or null when inferring
+     * @param start the time returned by {@link #startTimer}
+     */
+    protected void stopForwardTimer(Context context, long start) {
+        if (start != 0L) {
+            context.addForwardNanos(this, System.nanoTime() - start);
+        }
+    }
 
-            out.add(matrix);
+    /**
+     * Adds the time since a start time to this layer's backward time in the context
+     * @param context the context of the pass
+     * @param start the time returned by {@link #startTimer}
+     */
+    protected void stopBackwardTimer(Context context, long start) {
+        if (start != 0L) {
+            context.addBackwardNanos(this, System.nanoTime() - start);
         }
+    }
 
-        return out;
+    /**
+     * Runs the forward pass of this layer and the layers after it. With a context every layer writes to
+     * the buffers of that worker's state; without one every layer allocates its output, so inference
+     * can run on any thread.
+     * @param input the input of this layer
+     * @param context the context the activations needed for back propagation are cached in,
+     *                or null to run inference only
+     * @return the output of the last layer
+     */
+    public abstract Tensor getOutput(Tensor input, Context context);
+
+    /**
+     * Runs an inference-only forward pass of this layer and the layers after it.
+     * Nothing is cached and no layer state is written, so any number of threads
+     * may call this at the same time as long as the weights are not being updated.
+     * @param input the input of this layer
+     * @return the output of the last layer
+     */
+    public Tensor getOutput(Tensor input) {
+        return getOutput(input, null);
     }
 
+    /**
+     * Runs back propagation through this layer and the layers before it, accumulating the
+     * weight gradients in the context without changing the weights
+     * @param dLdO the derivative of the loss with respect to the output of this layer
+     * @param context the context used for the matching forward pass
+     */
+    public abstract void backPropagation(Tensor dLdO, Context context);
+
+    /**
+     * Adds up the gradients accumulated in every context, in order, updates the weights
+     * once with their average and clears the contexts for the next batch. The gradients are
+     * added up in the first context's buffers in the order the contexts are given, so the result
+     * does not depend on which worker finished first.
+     * @param contexts the contexts of every worker that took part in the batch
+     * @param batchSize the total number of samples in the batch
+     * @param iteration the current iteration number of the training process
+     */
+    public abstract void applyGradients(List<Context> contexts, int batchSize, int iteration);
+
+    /**
+     * Creates the per-worker state of this layer, including the buffers its passes write to
+     * @param capacity the largest number of samples the worker passes through the layer at once
+     * @return the state, or null if the layer needs none
+     */
+    protected abstract Object createState(int capacity);
+
+    /**
+     * Returns the trained values of this layer as the live arrays it computes with, always in the same
+     * order, so they can be saved and restored. Writing to the arrays changes the layer.
+     * @return the parameter arrays, empty if the layer has none
+     */
+    public double[][] getParameters() {
+        return new double[0][];
+    }
+
+    public abstract int getOutputLength();
+    public abstract int getOutputRows();
+    public abstract int getOutputCols();
+    public abstract int getOutputElements();
+
 }
@@ -0,0 +1,49 @@
+package layers;
+
+import helpers.Kernels;
+
+/**
+ * The leaky ReLU activation, z for positive inputs and slope * z otherwise.
+ * Ranges are processed with the startup {@link Kernels}.
+ */
+public class LeakyReLU implements Activation {
+
+    private static final Kernels KERNELS = Kernels.INSTANCE;
+
+    private final double _slope;
+
+    /**
+     * Creates a new leaky ReLU activation
+     * @param slope the slope for negative inputs, between 0 and 1
+     */
+    public LeakyReLU(double slope) {
+        if (slope < 0 || slope > 1) {
+            throw new IllegalArgumentException("Slope must be between 0 and 1, was " + slope);
+        }
+        _slope = slope;
+    }
+
+    public double getSlope() {
+        return _slope;
+    }
+
+    @Override
+    public double apply(double z) {
+        return z > 0 ? z : _slope * z;
+    }
+
+    @Override
+    public double derivative(double z) {
+        return z > 0 ? 1.0 : _slope;
+    }
+
+    @Override
+    public void forward(double[] z, int zOffset, double[] out, int outOffset, int length) {
+        KERNELS.leakyReLU(_slope, z, zOffset, out, outOffset, length);
+    }
+
+    @Override
+    public void backward(double[] z, int zOffset, double[] dLdO, int dLdOOffset, double[] out, int outOffset, int length) {
+        KERNELS.leakyReLUBackward(_slope, z, zOffset, dLdO, dLdOOffset, out, outOffset, length);
+    }
+}
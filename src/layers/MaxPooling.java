@@ -1,44 +1,96 @@
 package layers;
 
-import java.util.ArrayList;
+import data.Tensor;
+import data.Workspace;
+
 import java.util.List;
 
+/**
+ * A pooling layer that reduces every window of windowSize x windowSize values of each feature map to one value,
+ * moving the window by the step size. Windows are taken in max mode by default, or averaged in average mode.
+ * Windows that would run past the edge of the input are not pooled.
+ */
 public class MaxPooling extends Layer{
 
     private final int _stepSize;
     private final int _windowSize;
+    private final PoolingMode _mode;
 
     private final int _inLength;
     private final int _inRows;
     private final int _inCols;
 
-    List<int[][]> _lastMaxRow;
-    List<int[][]> _lastMaxCol;
+    /**
+     * Per-worker state of a pool layer
+     */
+    static class State {
+        // The position of each max value of the last forward pass in its input map, row * inCols + col
+        int[] _argmax;
+
+        // Buffers for the output and the error for the previous layer
+        Workspace _output;
+        Workspace _inputGradients;
+    }
 
 
     public MaxPooling(int _stepSize, int _windowSize, int _inLength, int _inRows, int _inCols) {
+        this(_stepSize, _windowSize, _inLength, _inRows, _inCols, PoolingMode.MAX);
+    }
+
+    /**
+     * Creates a new pool layer
+     * @param _stepSize the number of rows and columns the window moves by
+     * @param _windowSize the number of rows and columns in the window
+     * @param _inLength the number of input feature maps
+     * @param _inRows the number of rows in each input feature map
+     * @param _inCols the number of columns in each input feature map
+     * @param mode whether each window is reduced to its max or its average
+     */
+    public MaxPooling(int _stepSize, int _windowSize, int _inLength, int _inRows, int _inCols, PoolingMode mode) {
+        if (_windowSize < 1 || _stepSize < 1) {
+            throw new IllegalArgumentException("Window and step size must be at least 1, were " + _windowSize + " and " + _stepSize);
+        }
+        if (_windowSize > _inRows || _windowSize > _inCols) {
+            throw new IllegalArgumentException("Window of " + _windowSize + " does not fit in a " + _inRows + "x" + _inCols + " input");
+        }
+
         this._stepSize = _stepSize;
         this._windowSize = _windowSize;
+        this._mode = mode;
         this._inLength = _inLength;
         this._inRows = _inRows;
         this._inCols = _inCols;
     }
 
     /**
-     * Returns the number of rows in the output of the max pool layer
-     * @param input the input to the max pool layer
-     * @return the number of rows in the output of the max pool layer
+     * Performs pooling on every feature map of every sample of the input
+     * @param input the input to the pool layer
+     * @param context the context the location of each max value is cached in, or null when inferring
+     * @return the pooled feature maps
      */
-    public List<double[][]> maxPoolForwardPass(List<double[][]> input) {
+    public Tensor maxPoolForwardPass(Tensor input, Context context) {
+
+        // View the input in this layer's shape, whatever shape the previous layer produced
+        input = input.reshape(_inLength, _inRows, _inCols);
 
-        List<double[][]> output = new ArrayList<>();
+        State state = null;
+        Tensor output;
+        if (context != null) {
+            state = context.state(this);
+            output = state._output.get(input.getBatch());
 
-        // Two new ArrayLists are created to store the location of each max value in the input arrays
-        _lastMaxRow = new ArrayList<>();
-        _lastMaxCol = new ArrayList<>();
+            // The position of each max value is stored in one array, grown if the batch is larger than any before
+            if (_mode == PoolingMode.MAX && state._argmax.length < output.size()) {
+                state._argmax = new int[output.size()];
+            }
+        } else {
+            output = new Tensor(input.getBatch(), getOutputLength(), getOutputRows(), getOutputCols());
+        }
 
-        for (double[][] doubles : input) {
-            output.add(pool(doubles)); // The output of the pooling operation is added to the output List
+        for (int n = 0; n < input.getBatch(); n++) {
+            for (int l = 0; l < _inLength; l++) {
+                pool(input, output, n, l, state); // The output of the pooling operation is written to the output tensor
+            }
         }
 
         return output;
@@ -46,112 +98,236 @@ public class MaxPooling extends Layer{
     }
 
     /**
-     * Returns the number of rows in the output of the max pool layer
-     * @param input the input to the max pool layer
-     * @return the number of rows in the output of the max pool layer
+     * Pools a single feature map of the input into the same feature map of the output
+     * @param input the input to the pool layer
+     * @param output the output of the pool layer
+     * @param n the sample to pool
+     * @param l the feature map to pool
+     * @param state the state the location of each max value is stored in, or null when inferring
      */
-    public double[][] pool(double[][] input){
-        double[][] output = new double[getOutputRows()][getOutputCols()];
-
-        int[][] maxRows = new int[getOutputRows()][getOutputCols()];
-        int[][] maxCols = new int[getOutputRows()][getOutputCols()];
+    void pool(Tensor input, Tensor output, int n, int l, State state){
+        final double[] in = input.getData();
+        final double[] out = output.getData();
+        final int inOffset = input.index(n, l, 0, 0);
+        final int outOffset = output.index(n, l, 0, 0);
+        final int[] argmax = state != null ? state._argmax : null;
+        final int argmaxOffset = outOffset - output.getOffset();
+
+        if (_mode == PoolingMode.AVERAGE) {
+            averagePool(in, inOffset, out, outOffset);
+        } else if (_windowSize == 2) {
+            maxPool2x2(in, inOffset, out, outOffset, argmax, argmaxOffset);
+        } else {
+            maxPool(in, inOffset, out, outOffset, argmax, argmaxOffset);
+        }
+    }
 
-        for (int row = 0, i = 0; row < getOutputRows(); row += _stepSize, i++) {
-            for (int col = 0, j = 0; col < getOutputCols(); col += _stepSize, j++) {
-                double max = input[row][col];
+    /**
+     * Max pools a feature map with any window size
+     * @param in the backing array of the input
+     * @param inOffset the index of the input map in its backing array
+     * @param out the backing array of the output
+     * @param outOffset the index of the output map in its backing array
+     * @param argmax the array the position of each max is stored in, or null when inferring
+     * @param argmaxOffset the index in argmax of the first position of this map
+     */
+    private void maxPool(double[] in, int inOffset, double[] out, int outOffset, int[] argmax, int argmaxOffset) {
+        final int outRows = getOutputRows();
+        final int outCols = getOutputCols();
 
-                // Perform the pooling operation
-                maxRows[i][j] = row;
-                maxCols[i][j] = col;
+        for (int i = 0; i < outRows; i++) {
+            for (int j = 0; j < outCols; j++) {
+                int first = (i * _stepSize) * _inCols + j * _stepSize;
+                double max = in[inOffset + first];
+                int maxIndex = first;
 
                 // Find the maximum value in the window
-                if (input[row][col + 1] > max) {
-                    max = input[row][col + 1]; maxRows[i][j] = row; maxCols[i][j] = col + 1;
+                for (int x = 0; x < _windowSize; x++) {
+                    int row = first + x * _inCols;
+
+                    for (int y = 0; y < _windowSize; y++) {
+                        if (in[inOffset + row + y] > max) {
+                            max = in[inOffset + row + y];
+                            maxIndex = row + y;
+                        }
+                    }
                 }
 
-                if (input[row + 1][col] > max) {
-                    max = input[row + 1][col]; maxRows[i][j] = row + 1; maxCols[i][j] = col;
+                // store the location of the max value
+                int o = i * outCols + j;
+                out[outOffset + o] = max;
+                if (argmax != null) {
+                    argmax[argmaxOffset + o] = maxIndex;
                 }
+            }
+        }
+    }
 
-                if (input[row + 1][col + 1] > max) {
-                    max = input[row + 1][col + 1]; maxRows[i][j] = row + 1; maxCols[i][j] = col + 1;
+    /**
+     * Max pools a feature map with a 2x2 window, the common case, with the window comparisons unrolled.
+     * See {@link #maxPool} for the parameters.
+     */
+    private void maxPool2x2(double[] in, int inOffset, double[] out, int outOffset, int[] argmax, int argmaxOffset) {
+        final int outRows = getOutputRows();
+        final int outCols = getOutputCols();
+
+        for (int i = 0; i < outRows; i++) {
+            for (int j = 0; j < outCols; j++) {
+                int first = (i * _stepSize) * _inCols + j * _stepSize;
+                int base = inOffset + first;
+                double max = in[base];
+                int maxIndex = first;
+
+                if (in[base + 1] > max) {
+                    max = in[base + 1]; maxIndex = first + 1;
+                }
+
+                if (in[base + _inCols] > max) {
+                    max = in[base + _inCols]; maxIndex = first + _inCols;
+                }
+
+                if (in[base + _inCols + 1] > max) {
+                    max = in[base + _inCols + 1]; maxIndex = first + _inCols + 1;
                 }
 
                 // store the location of the max value
-                output[i][j] = max;
+                int o = i * outCols + j;
+                out[outOffset + o] = max;
+                if (argmax != null) {
+                    argmax[argmaxOffset + o] = maxIndex;
+                }
             }
         }
-
-        // Remember the last position of the max value
-        _lastMaxRow.add(maxRows);
-        _lastMaxCol.add(maxCols);
-
-        return output;
     }
 
+    /**
+     * Average pools a feature map with any window size. See {@link #maxPool} for the parameters.
+     */
+    private void averagePool(double[] in, int inOffset, double[] out, int outOffset) {
+        final int outRows = getOutputRows();
+        final int outCols = getOutputCols();
+        final double scale = 1.0 / (_windowSize * _windowSize);
+
+        for (int i = 0; i < outRows; i++) {
+            for (int j = 0; j < outCols; j++) {
+                int first = inOffset + (i * _stepSize) * _inCols + j * _stepSize;
+                double sum = 0.0;
+
+                for (int x = 0; x < _windowSize; x++) {
+                    int row = first + x * _inCols;
+
+                    for (int y = 0; y < _windowSize; y++) {
+                        sum += in[row + y];
+                    }
+                }
 
-    @Override
-    public double[] getOutput(List<double[][]> input) {
-        List<double[][]> outputPool = maxPoolForwardPass(input);
-        return _nextLayer.getOutput(outputPool);
+                out[outOffset + i * outCols + j] = sum * scale;
+            }
+        }
     }
 
-    @Override
-    public double[] getOutput(double[] input) {
-        List<double[][]> matrixList = vectorToMatrix(input, _inLength, _inRows, _inCols);
-        return getOutput(matrixList);
-    }
 
     @Override
-    public void backPropagation(double[] dLdO, int iteration) {
-        List<double[][]> matrixList = vectorToMatrix(dLdO, getOutputLength(), getOutputRows(), getOutputCols());
-        backPropagation(matrixList, iteration);
+    public Tensor getOutput(Tensor input, Context context) {
+        long start = startTimer(context);
+        Tensor outputPool = maxPoolForwardPass(input, context);
+        stopForwardTimer(context, start);
+        return _nextLayer.getOutput(outputPool, context);
     }
 
     /**
      * Backpropagation for the max pooling layer
-     * @param dLdO List of dL/dO matrices
-     * @param iteration Current iteration
+     * @param dLdO dL/dO for every pooled feature map
+     * @param context Context used for the matching forward pass
      */
     @Override
-    public void backPropagation(List<double[][]> dLdO, int iteration) {
+    public void backPropagation(Tensor dLdO, Context context) {
 
-        List<double[][]> dXdL = new ArrayList<>(dLdO.size());
+        // View the error in this layer's output shape, whatever shape the next layer produced
+        dLdO = dLdO.reshape(getOutputLength(), getOutputRows(), getOutputCols());
+
+        long start = startTimer(context);
+        State state = context.state(this);
+
+        Tensor dXdL = state._inputGradients.zeroed(dLdO.getBatch());
+        double[] error = dXdL.getData();
+        double[] array = dLdO.getData();
 
         final int outputRows = getOutputRows();
         final int outputCols = getOutputCols();
+        final int outputSize = outputRows * outputCols;
+        final double scale = 1.0 / (_windowSize * _windowSize);
 
-        int l = 0;
-        for (double[][] array : dLdO) {
-            double[][] error = new double[_inRows][_inCols];
+        for (int m = 0; m < dLdO.getBatch() * _inLength; m++) {
+            final int previousOffset = dXdL.index(m / _inLength, m % _inLength, 0, 0);
 
-            // Find where the error came from and add it to the error matrix
-            final int outputSize = outputRows * outputCols;
             for (int i = 0; i < outputSize; i++) {
-                final int row = i / outputCols;
-                final int col = i % outputCols;
-
-                // Get previous x and y position of the max value
-                final int max_i = _lastMaxRow.get(l)[row][col];
-                final int max_j = _lastMaxCol.get(l)[row][col];
-
-                // If there was a max value, add the corresponding coordinate to where our max value came from
-                // Then add the error to the error matrix
-                if (max_i != -1) {
-                    error[max_i][max_j] += array[row][col];
+                final int k = m * outputSize + i;
+                final double e = array[dLdO.getOffset() + k];
+
+                if (_mode == PoolingMode.MAX) {
+                    // The error only flows to where the max value came from
+                    error[previousOffset + state._argmax[k]] += e;
+                } else {
+                    // The error is shared evenly by every value of the window
+                    int first = previousOffset + (i / outputCols * _stepSize) * _inCols + i % outputCols * _stepSize;
+                    double share = e * scale;
+
+                    for (int x = 0; x < _windowSize; x++) {
+                        for (int y = 0; y < _windowSize; y++) {
+                            error[first + x * _inCols + y] += share;
+                        }
+                    }
                 }
             }
-
-            dXdL.add(error);
-            l++;
         }
 
+        stopBackwardTimer(context, start);
+
         if (_previousLayer != null) {
-            _previousLayer.backPropagation(dXdL, iteration);
+            _previousLayer.backPropagation(dXdL, context);
         }
 
     }
 
+    @Override
+    public void applyGradients(List<Context> contexts, int batchSize, int iteration) {
+        // Max pooling has no weights
+    }
+
+    @Override
+    protected Object createState(int capacity) {
+        State state = new State();
+        state._output = new Workspace(capacity, getOutputLength(), getOutputRows(), getOutputCols());
+        state._inputGradients = new Workspace(capacity, _inLength, _inRows, _inCols);
+        state._argmax = new int[_mode == PoolingMode.MAX ? Math.max(capacity, 1) * getOutputElements() : 0];
+        return state;
+    }
+
+    public int getWindowSize() {
+        return _windowSize;
+    }
+
+    public int getStepSize() {
+        return _stepSize;
+    }
+
+    public PoolingMode getMode() {
+        return _mode;
+    }
+
+    public int getInputLength() {
+        return _inLength;
+    }
+
+    public int getInputRows() {
+        return _inRows;
+    }
+
+    public int getInputCols() {
+        return _inCols;
+    }
+
     @Override
     public int getOutputLength() {
         return _inLength;
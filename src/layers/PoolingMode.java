@@ -0,0 +1,17 @@
+package layers;
+
+/**
+ * How a {@link MaxPooling} layer reduces each window of its input to one value
+ */
+public enum PoolingMode {
+
+    /**
+     * Keeps the largest value of each window, the first one in row-major order on ties
+     */
+    MAX,
+
+    /**
+     * Keeps the mean of the values of each window
+     */
+    AVERAGE
+}
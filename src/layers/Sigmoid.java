@@ -0,0 +1,18 @@
+package layers;
+
+/**
+ * The logistic sigmoid activation, 1 / (1 + e^-z)
+ */
+public class Sigmoid implements Activation {
+
+    @Override
+    public double apply(double z) {
+        return 1.0 / (1.0 + Math.exp(-z));
+    }
+
+    @Override
+    public double derivative(double z) {
+        double s = apply(z);
+        return s * (1.0 - s);
+    }
+}
@@ -0,0 +1,18 @@
+package layers;
+
+/**
+ * The hyperbolic tangent activation
+ */
+public class Tanh implements Activation {
+
+    @Override
+    public double apply(double z) {
+        return Math.tanh(z);
+    }
+
+    @Override
+    public double derivative(double z) {
+        double t = Math.tanh(z);
+        return 1.0 - t * t;
+    }
+}
@@ -0,0 +1,74 @@
+package metrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes one line per epoch to a CSV file, with a header naming the columns. Besides the totals of
+ * the epoch there are three columns per layer: its forward and backward time in milliseconds and its
+ * gradient norm. Each line is flushed as it is written, so the file can be followed during training.
+ */
+public class CsvMetricsSink implements MetricsSink {
+
+    private final BufferedWriter _writer;
+    private boolean _headerWritten;
+
+    /**
+     * Creates the file, replacing any file already there
+     * @param path the path of the file
+     */
+    public CsvMetricsSink(String path) throws IOException {
+        _writer = Files.newBufferedWriter(Path.of(path));
+    }
+
+    @Override
+    public void report(EpochMetrics metrics) {
+        try {
+            if (!_headerWritten) {
+                writeHeader(metrics);
+                _headerWritten = true;
+            }
+
+            StringBuilder line = new StringBuilder()
+                    .append(metrics.epoch()).append(',')
+                    .append(metrics.loss()).append(',')
+                    .append(Double.isNaN(metrics.accuracy()) ? "" : Double.toString(metrics.accuracy())).append(',')
+                    .append(metrics.samples()).append(',')
+                    .append(metrics.steps()).append(',')
+                    .append(metrics.millis()).append(',')
+                    .append(metrics.samplesPerSecond()).append(',')
+                    .append(metrics.allocatedBytesPerStep());
+
+            for (int i = 0; i < metrics.layers().length; i++) {
+                line.append(',').append(metrics.forwardNanos()[i] / 1e6)
+                        .append(',').append(metrics.backwardNanos()[i] / 1e6)
+                        .append(',').append(metrics.gradientNorms()[i]);
+            }
+
+            _writer.write(line.toString());
+            _writer.newLine();
+            _writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeHeader(EpochMetrics metrics) throws IOException {
+        StringBuilder header = new StringBuilder("epoch,loss,accuracy,samples,steps,millis,samplesPerSecond,allocatedBytesPerStep");
+        for (String layer : metrics.layers()) {
+            header.append(',').append(layer).append(".forwardMillis")
+                    .append(',').append(layer).append(".backwardMillis")
+                    .append(',').append(layer).append(".gradientNorm");
+        }
+        _writer.write(header.toString());
+        _writer.newLine();
+    }
+
+    @Override
+    public void close() throws IOException {
+        _writer.close();
+    }
+}
@@ -0,0 +1,47 @@
+package metrics;
+
+/**
+ * What one epoch of training cost and achieved. Times of the layers are summed over every worker,
+ * so with several threads they can add up to more than the wall time of the epoch.
+ * @param epoch the epoch
+ * @param loss the average cost over every image of the epoch
+ * @param accuracy the accuracy measured after the epoch, or NaN if none was recorded
+ * @param samples the number of images trained on
+ * @param steps the number of weight updates
+ * @param nanos the wall time of the epoch in nanoseconds
+ * @param allocatedBytes the bytes allocated by the training threads, or -1 if the JVM cannot measure it
+ * @param layers the name of every layer, in order
+ * @param forwardNanos the time each layer spent in its own forward passes
+ * @param backwardNanos the time each layer spent in its own backward passes
+ * @param gradientNorms the mean L2 norm of each layer's batch-averaged gradient, 0 for layers without weights
+ */
+public record EpochMetrics(int epoch, double loss, double accuracy, int samples, int steps, long nanos,
+                           long allocatedBytes, String[] layers, long[] forwardNanos, long[] backwardNanos,
+                           double[] gradientNorms) {
+
+    /**
+     * Returns a copy with the accuracy measured after the epoch
+     * @param accuracy the accuracy
+     * @return the copy
+     */
+    public EpochMetrics withAccuracy(double accuracy) {
+        return new EpochMetrics(epoch, loss, accuracy, samples, steps, nanos, allocatedBytes, layers,
+                forwardNanos, backwardNanos, gradientNorms);
+    }
+
+    public double samplesPerSecond() {
+        return nanos > 0 ? samples * 1e9 / nanos : 0.0;
+    }
+
+    public double millis() {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Returns the bytes allocated per weight update
+     * @return the bytes per step, or -1 if allocation could not be measured
+     */
+    public double allocatedBytesPerStep() {
+        return allocatedBytes < 0 ? -1 : steps > 0 ? (double) allocatedBytes / steps : 0.0;
+    }
+}
@@ -0,0 +1,116 @@
+package metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Exposes the last epoch reported as an MBean on the platform MBean server, under
+ * {@code network:type=TrainingMetrics,name=<name>}, so a running training can be watched with JConsole
+ * or any other JMX client. Every attribute reads 0 or NaN until the first epoch is reported.
+ * Sinks are created registered by {@link #register(String)}; the MBean is unregistered on close.
+ */
+public class JmxMetricsSink implements MetricsSink, JmxMetricsSinkMBean {
+
+    private static final EpochMetrics NONE = new EpochMetrics(-1, Double.NaN, Double.NaN, 0, 0, 0, -1,
+            new String[0], new long[0], new long[0], new double[0]);
+
+    private final ObjectName _name;
+    private volatile EpochMetrics _last = NONE;
+
+    private JmxMetricsSink(ObjectName name) {
+        _name = name;
+    }
+
+    /**
+     * Creates a sink and registers its MBean
+     * @param name the name that tells this training apart from any other in the same JVM
+     * @return the registered sink
+     */
+    public static JmxMetricsSink register(String name) throws IOException {
+        try {
+            JmxMetricsSink sink = new JmxMetricsSink(new ObjectName("network:type=TrainingMetrics,name=" + ObjectName.quote(name)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(sink, sink._name);
+            return sink;
+        } catch (JMException e) {
+            throw new IOException("Could not register training metrics MBean " + name, e);
+        }
+    }
+
+    @Override
+    public void report(EpochMetrics metrics) {
+        _last = metrics;
+    }
+
+    @Override
+    public int getEpoch() {
+        return _last.epoch();
+    }
+
+    @Override
+    public double getLoss() {
+        return _last.loss();
+    }
+
+    @Override
+    public double getAccuracy() {
+        return _last.accuracy();
+    }
+
+    @Override
+    public double getEpochMillis() {
+        return _last.millis();
+    }
+
+    @Override
+    public double getSamplesPerSecond() {
+        return _last.samplesPerSecond();
+    }
+
+    @Override
+    public double getAllocatedBytesPerStep() {
+        return _last.allocatedBytesPerStep();
+    }
+
+    @Override
+    public String[] getLayerNames() {
+        return _last.layers().clone();
+    }
+
+    @Override
+    public double[] getForwardMillis() {
+        return toMillis(_last.forwardNanos());
+    }
+
+    @Override
+    public double[] getBackwardMillis() {
+        return toMillis(_last.backwardNanos());
+    }
+
+    @Override
+    public double[] getGradientNorms() {
+        return _last.gradientNorms().clone();
+    }
+
+    private static double[] toMillis(long[] nanos) {
+        double[] millis = new double[nanos.length];
+        for (int i = 0; i < nanos.length; i++) {
+            millis[i] = nanos[i] / 1e6;
+        }
+        return millis;
+    }
+
+    @Override
+    public void close() throws IOException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(_name)) {
+                server.unregisterMBean(_name);
+            }
+        } catch (JMException e) {
+            throw new IOException("Could not unregister training metrics MBean " + _name, e);
+        }
+    }
+}
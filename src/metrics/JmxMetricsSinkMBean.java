@@ -0,0 +1,27 @@
+package metrics;
+
+/**
+ * The attributes {@link JmxMetricsSink} exposes over JMX, all of the last epoch reported
+ */
+public interface JmxMetricsSinkMBean {
+
+    int getEpoch();
+
+    double getLoss();
+
+    double getAccuracy();
+
+    double getEpochMillis();
+
+    double getSamplesPerSecond();
+
+    double getAllocatedBytesPerStep();
+
+    String[] getLayerNames();
+
+    double[] getForwardMillis();
+
+    double[] getBackwardMillis();
+
+    double[] getGradientNorms();
+}
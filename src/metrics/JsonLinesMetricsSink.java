@@ -0,0 +1,68 @@
+package metrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes one JSON object per epoch to a file, one per line, with the layers as an array of objects.
+ * A missing accuracy is written as null. Each line is flushed as it is written.
+ */
+public class JsonLinesMetricsSink implements MetricsSink {
+
+    private final BufferedWriter _writer;
+
+    /**
+     * Creates the file, replacing any file already there
+     * @param path the path of the file
+     */
+    public JsonLinesMetricsSink(String path) throws IOException {
+        _writer = Files.newBufferedWriter(Path.of(path));
+    }
+
+    @Override
+    public void report(EpochMetrics metrics) {
+        StringBuilder line = new StringBuilder()
+                .append("{\"epoch\":").append(metrics.epoch())
+                .append(",\"loss\":").append(number(metrics.loss()))
+                .append(",\"accuracy\":").append(number(metrics.accuracy()))
+                .append(",\"samples\":").append(metrics.samples())
+                .append(",\"steps\":").append(metrics.steps())
+                .append(",\"millis\":").append(number(metrics.millis()))
+                .append(",\"samplesPerSecond\":").append(number(metrics.samplesPerSecond()))
+                .append(",\"allocatedBytesPerStep\":").append(number(metrics.allocatedBytesPerStep()))
+                .append(",\"layers\":[");
+
+        for (int i = 0; i < metrics.layers().length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            // Layer names are made of letters, digits and colons, so they need no escaping
+            line.append("{\"name\":\"").append(metrics.layers()[i]).append('"')
+                    .append(",\"forwardMillis\":").append(number(metrics.forwardNanos()[i] / 1e6))
+                    .append(",\"backwardMillis\":").append(number(metrics.backwardNanos()[i] / 1e6))
+                    .append(",\"gradientNorm\":").append(number(metrics.gradientNorms()[i]))
+                    .append('}');
+        }
+        line.append("]}");
+
+        try {
+            _writer.write(line.toString());
+            _writer.newLine();
+            _writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String number(double value) {
+        return Double.isFinite(value) ? Double.toString(value) : "null";
+    }
+
+    @Override
+    public void close() throws IOException {
+        _writer.close();
+    }
+}
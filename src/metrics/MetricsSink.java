@@ -0,0 +1,15 @@
+package metrics;
+
+import java.io.Closeable;
+
+/**
+ * Somewhere the metrics of every epoch are sent, such as a file or JMX
+ */
+public interface MetricsSink extends Closeable {
+
+    /**
+     * Reports the metrics of an epoch. Called on the training thread, so it should return quickly.
+     * @param metrics the metrics
+     */
+    void report(EpochMetrics metrics);
+}
@@ -0,0 +1,115 @@
+package metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Collects the metrics of every training epoch and passes them on to its sinks.
+ *
+ * A network with metrics attached hands over its timings, gradient norms and allocations at the end
+ * of each epoch through {@link #endEpoch}. They are held until the accuracy measured after the epoch
+ * arrives through {@link #recordAccuracy}, so each epoch is reported once, complete; an epoch whose
+ * accuracy is never recorded is reported without one when the next epoch ends or on {@link #close}.
+ */
+public class TrainingMetrics implements AutoCloseable {
+
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    private final List<MetricsSink> _sinks;
+    private EpochMetrics _pending;
+    private EpochMetrics _last;
+
+    /**
+     * Creates a new collector
+     * @param sinks the sinks every epoch is reported to, closed with the collector
+     */
+    public TrainingMetrics(MetricsSink... sinks) {
+        _sinks = List.of(sinks);
+    }
+
+    /**
+     * Records the metrics of an epoch that has just been trained
+     * @param metrics the metrics, without an accuracy
+     */
+    public synchronized void endEpoch(EpochMetrics metrics) {
+        flush();
+        _pending = metrics;
+    }
+
+    /**
+     * Records the accuracy measured after the last epoch and reports the epoch
+     * @param accuracy the accuracy
+     */
+    public synchronized void recordAccuracy(double accuracy) {
+        if (_pending != null) {
+            _pending = _pending.withAccuracy(accuracy);
+            flush();
+        }
+    }
+
+    /**
+     * Returns the last epoch reported
+     * @return the metrics, or null if no epoch has been reported yet
+     */
+    public synchronized EpochMetrics getLast() {
+        return _last;
+    }
+
+    private void flush() {
+        if (_pending != null) {
+            for (MetricsSink sink : _sinks) {
+                sink.report(_pending);
+            }
+            _last = _pending;
+            _pending = null;
+        }
+    }
+
+    /**
+     * Reports any epoch still waiting for its accuracy and closes every sink
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+
+        IOException failure = null;
+        for (MetricsSink sink : _sinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Returns whether the JVM can measure the bytes allocated by a thread
+     * @return true if {@link #allocatedBytes()} works
+     */
+    public static boolean isAllocationSupported() {
+        return THREADS != null;
+    }
+
+    /**
+     * Returns the bytes allocated by the calling thread since it started, without allocating
+     * @return the bytes, or 0 if the JVM cannot measure them
+     */
+    public static long allocatedBytes() {
+        return THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : 0L;
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (threads.isThreadAllocatedMemorySupported()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+                return threads;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,379 @@
+package network;
+
+import helpers.Normalization;
+import layers.Activation;
+import layers.Convolution;
+import layers.ConvolutionEngine;
+import layers.ConvolutionMaxPooling;
+import layers.FullyConnected;
+import layers.Layer;
+import layers.LeakyReLU;
+import layers.MaxPooling;
+import layers.PoolingMode;
+import layers.Sigmoid;
+import layers.Tanh;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Saves a trained network to a compact binary file and loads it back, so a network can be used
+ * without retraining it.
+ *
+ * The file holds everything {@link NetworkBuilder} was given and the trained values of every layer:
+ * <pre>
+ * int    magic        'UCIN'
+ * int    version
+ * double scaleFactor
+ * int    batchSize
+ * int    threads
+ * int    valueFormat  0 for 8-byte doubles, the only format
+ * int    epochs       number of epochs trained
+ * double mean         mean of the raw training pixels, 0 when not known
+ * double stdDev       standard deviation of the raw training pixels, 0 when not known
+ * int    layerCount
+ * layer  layers[layerCount]
+ * </pre>
+ * Each layer is an int type followed by its hyperparameters and then its parameter arrays, each an
+ * int count followed by the values, in the value format of the header. All values are little-endian.
+ *
+ * Files are written through a temporary file that replaces the target once complete, so a reader never
+ * sees a partly written checkpoint, and loaded through a memory mapping, copying the parameters straight
+ * into the layers' arrays. Only files of the current version are read.
+ */
+public final class Checkpoint {
+
+    private static final int MAGIC = 0x5543494E;
+    private static final int VERSION = 1;
+
+    // Value formats
+    private static final int DOUBLES = 0;
+
+    // Layer types
+    private static final int CONVOLUTION = 1;
+    private static final int POOLING = 2;
+    private static final int CONVOLUTION_POOLING = 3;
+    private static final int FULLY_CONNECTED = 4;
+
+    // Activation types
+    private static final int LEAKY_RELU = 1;
+    private static final int SIGMOID = 2;
+    private static final int TANH = 3;
+
+    private Checkpoint() {
+    }
+
+    /**
+     * Writes a network to a file, replacing any file already there
+     * @param network the network, which must not be training at the same time
+     * @param path the path of the file to write
+     */
+    public static void save(NeuralNetwork network, String path) throws IOException {
+        save(network, i -> network._layers.get(i).getParameters(), network.getEpochs(), path);
+    }
+
+    /**
+     * Writes a snapshot of a network to a file, replacing any file already there. The network may
+     * carry on training while the snapshot is written.
+     * @param snapshot the snapshot
+     * @param path the path of the file to write
+     */
+    public static void save(Snapshot snapshot, String path) throws IOException {
+        save(snapshot.getNetwork(), snapshot::getParameters, snapshot.getEpochs(), path);
+    }
+
+    /**
+     * Writes a network with the given parameter arrays for each of its layers
+     * @param network the network the architecture is taken from
+     * @param layerParameters the parameter arrays of a layer, by position
+     * @param epochs the number of epochs trained
+     * @param path the path of the file to write
+     */
+    private static void save(NeuralNetwork network, IntFunction<double[][]> layerParameters, int epochs,
+                             String path) throws IOException {
+        Path target = Path.of(path);
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer writer = new Writer(channel);
+
+            writer.putInt(MAGIC);
+            writer.putInt(VERSION);
+            writer.putDouble(network.scaleFactor);
+            writer.putInt(network.batchSize);
+            writer.putInt(network.getThreads());
+            writer.putInt(DOUBLES);
+            writer.putInt(epochs);
+            Normalization normalization = network.getNormalization();
+            writer.putDouble(normalization != null ? normalization.mean() : 0);
+            writer.putDouble(normalization != null ? normalization.stdDev() : 0);
+            writer.putInt(network._layers.size());
+
+            for (int i = 0; i < network._layers.size(); i++) {
+                writeLayer(writer, network._layers.get(i));
+
+                for (double[] parameters : layerParameters.apply(i)) {
+                    writer.putInt(parameters.length);
+                    writer.putValues(parameters);
+                }
+            }
+
+            writer.flush();
+            channel.force(true);
+        }
+
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a network from a file with the batch size, thread count and epoch count it was saved with
+     * @param path the path to the file
+     * @return the network, ready to predict or to carry on training
+     */
+    public static NeuralNetwork load(String path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a network checkpoint " + path);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported checkpoint version " + version + " in " + path);
+            }
+
+            double scaleFactor = buffer.getDouble();
+            int batchSize = buffer.getInt();
+            int threads = buffer.getInt();
+            int valueFormat = buffer.getInt();
+            if (valueFormat != DOUBLES) {
+                throw new IllegalArgumentException("Unknown value format " + valueFormat + " in " + path);
+            }
+            int epochs = buffer.getInt();
+            double mean = buffer.getDouble();
+            double stdDev = buffer.getDouble();
+            int layerCount = buffer.getInt();
+
+            List<Layer> layers = new ArrayList<>(layerCount);
+            for (int i = 0; i < layerCount; i++) {
+                Layer layer = readLayer(buffer);
+
+                for (double[] parameters : layer.getParameters()) {
+                    int count = buffer.getInt();
+                    if (count != parameters.length) {
+                        throw new IllegalArgumentException("Layer " + i + " of " + path + " holds " + count
+                                + " values where " + parameters.length + " were expected");
+                    }
+                    readValues(buffer, parameters);
+                }
+                layers.add(layer);
+            }
+
+            NeuralNetwork network = new NeuralNetwork(layers, scaleFactor, batchSize, threads);
+            network.setEpochs(epochs);
+            if (stdDev != 0) {
+                network.setNormalization(new Normalization(mean, stdDev));
+            }
+            return network;
+        } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated or corrupt checkpoint " + path, e);
+        }
+    }
+
+    private static void writeLayer(Writer writer, Layer layer) throws IOException {
+        if (layer instanceof ConvolutionMaxPooling) {
+            writer.putInt(CONVOLUTION_POOLING);
+            writeConvolution(writer, ((ConvolutionMaxPooling) layer).getConvolution());
+            writePooling(writer, ((ConvolutionMaxPooling) layer).getPooling());
+        } else if (layer instanceof Convolution) {
+            writer.putInt(CONVOLUTION);
+            writeConvolution(writer, (Convolution) layer);
+        } else if (layer instanceof MaxPooling) {
+            writer.putInt(POOLING);
+            writePooling(writer, (MaxPooling) layer);
+        } else if (layer instanceof FullyConnected) {
+            FullyConnected fullyConnected = (FullyConnected) layer;
+            writer.putInt(FULLY_CONNECTED);
+            writer.putInt(fullyConnected.getInputLength());
+            writer.putInt(fullyConnected.getOutputElements());
+            writer.putLong(fullyConnected.getSeed());
+            writer.putDouble(fullyConnected.getLearningRate());
+            writeActivation(writer, fullyConnected.getActivation());
+            writer.putInt(fullyConnected.hasBias() ? 1 : 0);
+        } else {
+            throw new IllegalArgumentException("Cannot save a layer of type " + layer.getClass().getName());
+        }
+    }
+
+    private static void writeConvolution(Writer writer, Convolution convolution) throws IOException {
+        writer.putInt(convolution.getFilterSize());
+        writer.putInt(convolution.getStepSize());
+        writer.putInt(convolution.getInputLength());
+        writer.putInt(convolution.getInputRows());
+        writer.putInt(convolution.getInputCols());
+        writer.putLong(convolution.getSeed());
+        writer.putInt(convolution.getNumFilters());
+        writer.putDouble(convolution.getLearningRate());
+        writer.putInt(convolution.getEngine().ordinal());
+    }
+
+    private static void writePooling(Writer writer, MaxPooling pooling) throws IOException {
+        writer.putInt(pooling.getStepSize());
+        writer.putInt(pooling.getWindowSize());
+        writer.putInt(pooling.getInputLength());
+        writer.putInt(pooling.getInputRows());
+        writer.putInt(pooling.getInputCols());
+        writer.putInt(pooling.getMode().ordinal());
+    }
+
+    private static void writeActivation(Writer writer, Activation activation) throws IOException {
+        if (activation instanceof LeakyReLU) {
+            writer.putInt(LEAKY_RELU);
+            writer.putDouble(((LeakyReLU) activation).getSlope());
+        } else if (activation instanceof Sigmoid) {
+            writer.putInt(SIGMOID);
+        } else if (activation instanceof Tanh) {
+            writer.putInt(TANH);
+        } else {
+            throw new IllegalArgumentException("Cannot save an activation of type " + activation.getClass().getName());
+        }
+    }
+
+    private static Layer readLayer(ByteBuffer buffer) {
+        int type = buffer.getInt();
+        switch (type) {
+            case CONVOLUTION:
+                return readConvolution(buffer);
+            case POOLING:
+                return readPooling(buffer);
+            case CONVOLUTION_POOLING:
+                return new ConvolutionMaxPooling(readConvolution(buffer), readPooling(buffer));
+            case FULLY_CONNECTED:
+                int inLength = buffer.getInt();
+                int outLength = buffer.getInt();
+                long seed = buffer.getLong();
+                double learningRate = buffer.getDouble();
+                Activation activation = readActivation(buffer);
+                boolean bias = buffer.getInt() != 0;
+                return new FullyConnected(inLength, outLength, seed, learningRate, activation, bias);
+            default:
+                throw new IllegalArgumentException("Unknown layer type " + type);
+        }
+    }
+
+    private static Convolution readConvolution(ByteBuffer buffer) {
+        int filterSize = buffer.getInt();
+        int stepSize = buffer.getInt();
+        int inLength = buffer.getInt();
+        int inRows = buffer.getInt();
+        int inCols = buffer.getInt();
+        long seed = buffer.getLong();
+        int numFilters = buffer.getInt();
+        double learningRate = buffer.getDouble();
+        ConvolutionEngine engine = ConvolutionEngine.values()[buffer.getInt()];
+        return new Convolution(filterSize, stepSize, inLength, inRows, inCols, seed, numFilters, learningRate, engine);
+    }
+
+    private static MaxPooling readPooling(ByteBuffer buffer) {
+        int stepSize = buffer.getInt();
+        int windowSize = buffer.getInt();
+        int inLength = buffer.getInt();
+        int inRows = buffer.getInt();
+        int inCols = buffer.getInt();
+        PoolingMode mode = PoolingMode.values()[buffer.getInt()];
+        return new MaxPooling(stepSize, windowSize, inLength, inRows, inCols, mode);
+    }
+
+    private static Activation readActivation(ByteBuffer buffer) {
+        int type = buffer.getInt();
+        switch (type) {
+            case LEAKY_RELU:
+                return new LeakyReLU(buffer.getDouble());
+            case SIGMOID:
+                return Activation.SIGMOID;
+            case TANH:
+                return Activation.TANH;
+            default:
+                throw new IllegalArgumentException("Unknown activation type " + type);
+        }
+    }
+
+    /**
+     * Copies stored values into an array, moving the buffer past them
+     * @param buffer the buffer, positioned at the first value
+     * @param values the array to fill
+     */
+    private static void readValues(ByteBuffer buffer, double[] values) {
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + values.length * Double.BYTES);
+    }
+
+    /**
+     * Writes values through a fixed staging buffer, flushing it to the channel whenever it fills up
+     */
+    private static final class Writer {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            ensure(Double.BYTES);
+            buffer.putDouble(value);
+        }
+
+        void putValues(double[] values) throws IOException {
+            for (int i = 0; i < values.length; ) {
+                ensure(Double.BYTES);
+                int count = Math.min(values.length - i, buffer.remaining() / Double.BYTES);
+
+                buffer.asDoubleBuffer().put(values, i, count);
+                buffer.position(buffer.position() + count * Double.BYTES);
+                i += count;
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+}
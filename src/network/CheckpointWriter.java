@@ -0,0 +1,111 @@
+package network;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes snapshots of a network to disk on a background thread, so training does not wait for the disk.
+ *
+ * Snapshots are written one at a time in the order they were queued. A snapshot queued for a path
+ * that already has one waiting replaces it, since only the latest state of each file is worth writing.
+ * A failed write is reported by the next call to {@link #write} or {@link #close}.
+ */
+public class CheckpointWriter implements AutoCloseable {
+
+    private final ExecutorService _executor;
+
+    // Snapshots waiting to be written, by path, and whether the background thread is working through them
+    private final Map<String, Snapshot> _pending = new LinkedHashMap<>();
+    private boolean _draining;
+    private IOException _failure;
+
+    public CheckpointWriter() {
+        _executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a snapshot to be written, returning straight away
+     * @param snapshot the snapshot, which must not be changed until it has been written
+     * @param path the path of the file to write
+     */
+    public synchronized void write(Snapshot snapshot, String path) throws IOException {
+        checkFailure();
+        _pending.put(path, snapshot);
+
+        if (!_draining) {
+            _draining = true;
+            _executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Writes queued snapshots until there are none left
+     */
+    private void drain() {
+        while (true) {
+            String path;
+            Snapshot snapshot;
+            synchronized (this) {
+                Iterator<Map.Entry<String, Snapshot>> entries = _pending.entrySet().iterator();
+                if (!entries.hasNext()) {
+                    _draining = false;
+                    notifyAll();
+                    return;
+                }
+                Map.Entry<String, Snapshot> next = entries.next();
+                path = next.getKey();
+                snapshot = next.getValue();
+                entries.remove();
+            }
+
+            try {
+                snapshot.save(path);
+            } catch (IOException e) {
+                synchronized (this) {
+                    _failure = e;
+                }
+            } catch (RuntimeException e) {
+                // Reported like any other failed write, so the thread keeps draining and close does not wait forever
+                synchronized (this) {
+                    _failure = new IOException("Could not write checkpoint " + path, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for every queued snapshot to be written and stops the background thread
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            try {
+                while (_draining) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for checkpoints to be written", e);
+            } finally {
+                _executor.shutdown();
+            }
+            checkFailure();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException failure = _failure;
+        if (failure != null) {
+            _failure = null;
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package network;
+
+import data.Image;
+import helpers.Kernels;
+import layers.Activation;
+import layers.Convolution;
+import layers.ConvolutionMaxPooling;
+import layers.FullyConnected;
+import layers.Layer;
+import layers.MaxPooling;
+import layers.PoolingMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A trained network converted to 32-bit floats for inference.
+ *
+ * Filters, weights and biases are stored as floats, and so are the values passed between layers, which are
+ * computed with the float kernels of {@link Kernels}. Every layer reads and writes half the bytes of the
+ * double network and a vector register holds twice as many values. Only the scores of the last layer are
+ * widened back to doubles, to be returned.
+ *
+ * Training stays in doubles, where the small updates of every batch would be lost to float rounding; a network
+ * is trained as usual and converted once it is done. Predicting only reads the converted weights, so it is
+ * safe from many threads at once.
+ */
+public final class Float32Network {
+
+    private static final Kernels KERNELS = Kernels.INSTANCE;
+
+    /**
+     * One layer of float inference, reading the values of one image and writing those for the next layer
+     */
+    private interface Stage {
+
+        int getInputSize();
+
+        int getOutputSize();
+
+        void run(float[] in, float[] out);
+
+        long getParameterBytes();
+    }
+
+    private final int _inputSize;
+    private final float _inputScale;
+    private final List<Stage> _stages;
+    private final int _maxSize;
+
+    private Float32Network(double scaleFactor, List<Stage> stages) {
+        _inputSize = stages.get(0).getInputSize();
+        _inputScale = (float) (1.0 / scaleFactor);
+        _stages = stages;
+
+        int maxSize = _inputSize;
+        for (Stage stage : stages) {
+            maxSize = Math.max(maxSize, stage.getOutputSize());
+        }
+        _maxSize = maxSize;
+    }
+
+    /**
+     * Converts a trained network to floats
+     * @param network the trained network, which is not changed
+     * @return the float network
+     */
+    public static Float32Network convert(NeuralNetwork network) {
+        List<Stage> stages = new ArrayList<>();
+        for (Layer layer : network._layers) {
+            if (layer instanceof ConvolutionMaxPooling fused) {
+                stages.add(new ConvolutionStage(fused.getConvolution()));
+                stages.add(new PoolingStage(fused.getPooling()));
+            } else if (layer instanceof Convolution convolution) {
+                stages.add(new ConvolutionStage(convolution));
+            } else if (layer instanceof MaxPooling pooling) {
+                stages.add(new PoolingStage(pooling));
+            } else if (layer instanceof FullyConnected fullyConnected) {
+                stages.add(new FullyConnectedStage(fullyConnected));
+            } else {
+                throw new IllegalArgumentException("Cannot convert a " + layer.getClass().getSimpleName() + " layer");
+            }
+        }
+
+        return new Float32Network(network.scaleFactor, stages);
+    }
+
+    /**
+     * Guesses the labels of many images
+     * @param images the images to guess, with raw pixel values like those given to the double network
+     * @return the guessed labels and the output of the network for every image
+     */
+    public Prediction predict(List<Image> images) {
+        int classes = _stages.get(_stages.size() - 1).getOutputSize();
+        int[] labels = new int[images.size()];
+        double[] scores = new double[images.size() * classes];
+
+        float[] in = new float[_maxSize];
+        float[] out = new float[_maxSize];
+
+        for (int n = 0; n < images.size(); n++) {
+            int i = 0;
+            for (double[] row : images.get(n).getData()) {
+                for (double value : row) {
+                    in[i++] = (float) value * _inputScale;
+                }
+            }
+            if (i != _inputSize) {
+                throw new IllegalArgumentException("Expected images of " + _inputSize + " pixels, got " + i);
+            }
+
+            for (Stage stage : _stages) {
+                stage.run(in, out);
+                float[] swap = in;
+                in = out;
+                out = swap;
+            }
+
+            int best = 0;
+            for (int c = 0; c < classes; c++) {
+                scores[n * classes + c] = in[c];
+                if (in[c] > in[best]) {
+                    best = c;
+                }
+            }
+            labels[n] = best;
+        }
+
+        return new Prediction(labels, scores, classes);
+    }
+
+    /**
+     * Tests the accuracy of the float network on a set of images
+     * @param images the images to test on
+     * @return the accuracy
+     */
+    public float test(List<Image> images) {
+        int[] labels = predict(images).getLabels();
+        int correct = 0;
+
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] == images.get(i).getLabel()) {
+                correct++;
+            }
+        }
+
+        return (float) correct / images.size();
+    }
+
+    /**
+     * Returns the memory taken by the float filters, weights and biases
+     * @return the number of bytes
+     */
+    public long getParameterBytes() {
+        long bytes = 0;
+        for (Stage stage : _stages) {
+            bytes += stage.getParameterBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Compares the float network with the network it was made from on a set of images
+     * @param network the double network
+     * @param images the images to test on
+     * @return the accuracy, agreement, size and speed of both
+     */
+    public QuantizationReport compare(NeuralNetwork network, List<Image> images) {
+        long start = System.nanoTime();
+        Prediction expected = network.predict(images);
+        long doubleNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        Prediction actual = predict(images);
+        long floatNanos = System.nanoTime() - start;
+
+        return QuantizationReport.of("float32", network, expected, doubleNanos, actual, floatNanos,
+                getParameterBytes(), images);
+    }
+
+    private static float[] toFloats(double[] values) {
+        float[] floats = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            floats[i] = (float) values[i];
+        }
+        return floats;
+    }
+
+    /**
+     * A convolution: every input map is convolved with every filter, as {@link Convolution} does
+     */
+    private static final class ConvolutionStage implements Stage {
+
+        private final float[] _filters;
+        private final int _numFilters;
+        private final int _filterSize;
+        private final int _stepSize;
+        private final int _inLength;
+        private final int _inCols;
+        private final int _inSize;
+        private final int _outRows;
+        private final int _outCols;
+
+        ConvolutionStage(Convolution convolution) {
+            _filters = toFloats(convolution.getParameters()[0]);
+            _numFilters = convolution.getNumFilters();
+            _filterSize = convolution.getFilterSize();
+            _stepSize = convolution.getStepSize();
+            _inLength = convolution.getInputLength();
+            _inCols = convolution.getInputCols();
+            _inSize = convolution.getInputRows() * _inCols;
+            _outRows = convolution.getOutputRows();
+            _outCols = convolution.getOutputCols();
+        }
+
+        @Override
+        public int getInputSize() {
+            return _inLength * _inSize;
+        }
+
+        @Override
+        public int getOutputSize() {
+            return _inLength * _numFilters * _outRows * _outCols;
+        }
+
+        @Override
+        public void run(float[] in, float[] out) {
+            int filterElements = _filterSize * _filterSize;
+            int o = 0;
+
+            for (int i = 0; i < _inLength; i++) {
+                int inOffset = i * _inSize;
+
+                for (int f = 0; f < _numFilters; f++) {
+                    int fOffset = f * filterElements;
+
+                    for (int r = 0; r < _outRows; r++, o += _outCols) {
+                        if (_stepSize == 1) {
+                            // Each filter element scales a contiguous run of an input row onto the output row
+                            Arrays.fill(out, o, o + _outCols, 0.0f);
+                            for (int x = 0; x < _filterSize; x++) {
+                                int inputRow = inOffset + (r + x) * _inCols;
+                                for (int y = 0; y < _filterSize; y++) {
+                                    KERNELS.axpy(_filters[fOffset + x * _filterSize + y], in, inputRow + y, out, o, _outCols);
+                                }
+                            }
+                            continue;
+                        }
+
+                        for (int c = 0; c < _outCols; c++) {
+                            float sum = 0.0f;
+                            int corner = inOffset + r * _stepSize * _inCols + c * _stepSize;
+
+                            for (int x = 0; x < _filterSize; x++) {
+                                sum += KERNELS.dot(_filters, fOffset + x * _filterSize, in, corner + x * _inCols, _filterSize);
+                            }
+                            out[o + c] = sum;
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public long getParameterBytes() {
+            return (long) _filters.length * Float.BYTES;
+        }
+    }
+
+    /**
+     * Max or average pooling, as {@link MaxPooling} does
+     */
+    private static final class PoolingStage implements Stage {
+
+        private final PoolingMode _mode;
+        private final int _windowSize;
+        private final int _stepSize;
+        private final int _length;
+        private final int _inRows;
+        private final int _inCols;
+        private final int _outRows;
+        private final int _outCols;
+
+        PoolingStage(MaxPooling pooling) {
+            _mode = pooling.getMode();
+            _windowSize = pooling.getWindowSize();
+            _stepSize = pooling.getStepSize();
+            _length = pooling.getInputLength();
+            _inRows = pooling.getInputRows();
+            _inCols = pooling.getInputCols();
+            _outRows = pooling.getOutputRows();
+            _outCols = pooling.getOutputCols();
+        }
+
+        @Override
+        public int getInputSize() {
+            return _length * _inRows * _inCols;
+        }
+
+        @Override
+        public int getOutputSize() {
+            return _length * _outRows * _outCols;
+        }
+
+        @Override
+        public void run(float[] in, float[] out) {
+            float scale = 1.0f / (_windowSize * _windowSize);
+            int o = 0;
+
+            for (int l = 0; l < _length; l++) {
+                int inOffset = l * _inRows * _inCols;
+
+                for (int r = 0; r < _outRows; r++) {
+                    for (int c = 0; c < _outCols; c++) {
+                        int corner = inOffset + r * _stepSize * _inCols + c * _stepSize;
+                        float max = in[corner];
+                        float sum = 0.0f;
+
+                        for (int x = 0; x < _windowSize; x++) {
+                            for (int y = 0; y < _windowSize; y++) {
+                                float value = in[corner + x * _inCols + y];
+                                max = Math.max(max, value);
+                                sum += value;
+                            }
+                        }
+
+                        out[o++] = _mode == PoolingMode.MAX ? max : sum * scale;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public long getParameterBytes() {
+            return 0;
+        }
+    }
+
+    /**
+     * A fully connected layer: each output is the dot product of the input with a row of float weights,
+     * plus its bias, through the layer's activation
+     */
+    private static final class FullyConnectedStage implements Stage {
+
+        private final float[] _weights;
+        private final float[] _biases;
+        private final int _inLength;
+        private final int _outLength;
+        private final Activation _activation;
+
+        FullyConnectedStage(FullyConnected layer) {
+            double[][] parameters = layer.getParameters();
+            _weights = toFloats(parameters[0]);
+            _biases = layer.hasBias() ? toFloats(parameters[1]) : null;
+            _inLength = layer.getInputLength();
+            _outLength = layer.getOutputElements();
+            _activation = layer.getActivation();
+        }
+
+        @Override
+        public int getInputSize() {
+            return _inLength;
+        }
+
+        @Override
+        public int getOutputSize() {
+            return _outLength;
+        }
+
+        @Override
+        public void run(float[] in, float[] out) {
+            for (int o = 0; o < _outLength; o++) {
+                float z = KERNELS.dot(_weights, o * _inLength, in, 0, _inLength);
+                if (_biases != null) {
+                    z += _biases[o];
+                }
+                out[o] = (float) _activation.apply(z);
+            }
+        }
+
+        @Override
+        public long getParameterBytes() {
+            return ((long) _weights.length + (_biases != null ? _outLength : 0)) * Float.BYTES;
+        }
+    }
+}
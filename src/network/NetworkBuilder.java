@@ -1,9 +1,13 @@
 package network;
 
+import layers.Activation;
 import layers.Convolution;
+import layers.ConvolutionMaxPooling;
+import layers.ConvolutionEngine;
 import layers.FullyConnected;
 import layers.Layer;
 import layers.MaxPooling;
+import layers.PoolingMode;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -13,6 +17,9 @@ public class NetworkBuilder {
     private final int _inputRows;
     private final int _inputCols;
     private final double _scaleFactor;
+    private int _batchSize = 1;
+    private int _threads = 1;
+    private boolean _fuseConvolutionPooling = true;
     List<Layer> _layers;
 
     /**
@@ -37,25 +44,58 @@ public class NetworkBuilder {
      * @param SEED the seed to be used in the convolution layer
      */
     public void addConvolutionLayer(int numFilters, int filterSize, int stepSize, double learningRate, long SEED){
+        addConvolutionLayer(numFilters, filterSize, stepSize, learningRate, SEED, ConvolutionEngine.DIRECT);
+    }
+
+    /**
+     * Adds a convolution layer to the network
+     * @param numFilters the number of filters to be used in the convolution layer
+     * @param filterSize the size of the filters to be used in the convolution layer
+     * @param stepSize the step size to be used in the convolution layer
+     * @param learningRate the learning rate to be used in the convolution layer
+     * @param SEED the seed to be used in the convolution layer
+     * @param engine the algorithm the convolution layer computes its passes with
+     */
+    public void addConvolutionLayer(int numFilters, int filterSize, int stepSize, double learningRate, long SEED, ConvolutionEngine engine){
         if(_layers.isEmpty()){
-            _layers.add(new Convolution(filterSize, stepSize, 1, _inputRows, _inputCols, SEED, numFilters, learningRate));
+            _layers.add(new Convolution(filterSize, stepSize, 1, _inputRows, _inputCols, SEED, numFilters, learningRate, engine));
         } else {
             Layer prev = _layers.get(_layers.size()-1);
-            _layers.add(new Convolution(filterSize, stepSize, prev.getOutputLength(), prev.getOutputRows(), prev.getOutputCols(), SEED, numFilters, learningRate));
+            _layers.add(new Convolution(filterSize, stepSize, prev.getOutputLength(), prev.getOutputRows(), prev.getOutputCols(), SEED, numFilters, learningRate, engine));
         }
     }
 
     /**
-     * Adds a max pool layer to the network
+     * Adds a max pool layer to the network. A max pool layer directly after a direct convolution layer
+     * is fused with it into a single {@link ConvolutionMaxPooling} layer, unless fusion is turned off.
      * @param windowSize the size of the window to be used in the max pool layer
      * @param stepSize the step size to be used in the max pool layer
      */
     public void addMaxPoolLayer(int windowSize, int stepSize){
+        addPoolLayer(windowSize, stepSize, PoolingMode.MAX);
+    }
+
+    /**
+     * Adds a pool layer to the network. A max pool layer directly after a direct convolution layer
+     * is fused with it into a single {@link ConvolutionMaxPooling} layer, unless fusion is turned off.
+     * @param windowSize the size of the window to be used in the pool layer
+     * @param stepSize the step size to be used in the pool layer
+     * @param mode whether the pool layer keeps the max or the average of each window
+     */
+    public void addPoolLayer(int windowSize, int stepSize, PoolingMode mode){
         if(_layers.isEmpty()){
-            _layers.add(new MaxPooling(stepSize, windowSize, 1, _inputRows, _inputCols));
+            _layers.add(new MaxPooling(stepSize, windowSize, 1, _inputRows, _inputCols, mode));
         } else {
             Layer prev = _layers.get(_layers.size()-1);
-            _layers.add(new MaxPooling(stepSize, windowSize, prev.getOutputLength(), prev.getOutputRows(), prev.getOutputCols()));
+            MaxPooling pooling = new MaxPooling(stepSize, windowSize, prev.getOutputLength(), prev.getOutputRows(), prev.getOutputCols(), mode);
+
+            // The fused layer always convolves directly, so a convolution using another engine keeps it
+            if (_fuseConvolutionPooling && mode == PoolingMode.MAX && prev instanceof Convolution convolution
+                    && convolution.getEngine() == ConvolutionEngine.DIRECT) {
+                _layers.set(_layers.size() - 1, new ConvolutionMaxPooling(convolution, pooling));
+            } else {
+                _layers.add(pooling);
+            }
         }
     }
 
@@ -66,17 +106,55 @@ public class NetworkBuilder {
      * @param SEED the seed to be used in the fully connected layer
      */
     public void addFullyConnectedLayer(int outLength, double learningRate, long SEED){
+        addFullyConnectedLayer(outLength, learningRate, SEED, Activation.LEAKY_RELU, false);
+    }
+
+    /**
+     * Adds a fully connected layer to the network
+     * @param outLength the number of output elements to be used in the fully connected layer
+     * @param learningRate the learning rate to be used in the fully connected layer
+     * @param SEED the seed to be used in the fully connected layer
+     * @param activation the activation applied to every output of the fully connected layer
+     * @param bias whether every output of the fully connected layer has a trained bias
+     */
+    public void addFullyConnectedLayer(int outLength, double learningRate, long SEED, Activation activation, boolean bias){
         if(_layers.isEmpty()) {
-            _layers.add(new FullyConnected(_inputCols * _inputRows, outLength, SEED, learningRate));
+            _layers.add(new FullyConnected(_inputCols * _inputRows, outLength, SEED, learningRate, activation, bias));
         } else {
             Layer prev = _layers.get(_layers.size() - 1);
-            _layers.add(new FullyConnected(prev.getOutputElements(), outLength, SEED, learningRate));
+            _layers.add(new FullyConnected(prev.getOutputElements(), outLength, SEED, learningRate, activation, bias));
         }
 
     }
 
+    /**
+     * Sets the number of images whose gradients are accumulated before the weights are updated
+     * @param batchSize the mini-batch size, 1 for per-sample updates
+     */
+    public void setBatchSize(int batchSize){
+        _batchSize = batchSize;
+    }
+
+    /**
+     * Sets the number of workers each training batch is split across
+     * @param threads the number of threads, 1 to train on the calling thread
+     */
+    public void setThreads(int threads){
+        _threads = threads;
+    }
+
+    /**
+     * Sets whether a max pool layer added directly after a convolution layer is fused with it.
+     * The fused layer computes its convolution directly, so the convolution's engine wins: a convolution
+     * using {@link ConvolutionEngine#IM2COL} is never fused, and keeps its own max pool layer.
+     * @param fuse true to fuse the pair into one layer, which is the default
+     */
+    public void setFuseConvolutionPooling(boolean fuse){
+        _fuseConvolutionPooling = fuse;
+    }
+
     public NeuralNetwork build(){
-        return new NeuralNetwork(_layers, _scaleFactor);
+        return new NeuralNetwork(_layers, _scaleFactor, _batchSize, _threads);
     }
 
 }
@@ -1,24 +1,116 @@
 package network;
 
+import data.Batch;
 import data.Image;
+import data.Tensor;
+import data.Workspace;
+import helpers.Normalization;
+import layers.Context;
 import layers.Layer;
+import metrics.EpochMetrics;
+import metrics.TrainingMetrics;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.function.IntUnaryOperator;
 
-import static helpers.MatrixUtility.add;
-import static helpers.MatrixUtility.multiply;
-
-public class NeuralNetwork {
+public class NeuralNetwork implements AutoCloseable {
 
     List<Layer> _layers;
     double scaleFactor;
+    int batchSize;
+
+    // Number of images pushed through the layers at once when predicting
+    private static final int PREDICT_BLOCK = 1024;
+
+    // One context per worker; each batch is split into this many slices, run on the pool until the network is closed
+    private final List<Context> _contexts;
+    private final ForkJoinPool _pool;
+
+    // Largest slice of a batch a worker trains on, and each worker's buffers for its input and output error
+    private final int _capacity;
+    private final Workspace[] _inputs;
+    private final Workspace[] _errors;
+
+    // Trains the workers on whatever images are being trained on, reused for every epoch and batch
+    private final TrainingTask _training = new TrainingTask();
+
+    // Number of epochs trained so far, which is the epoch to train next
+    private int _epochs;
+
+    // How the raw training images were normalized, or null when it is not known
+    private Normalization _normalization;
+
+    // Counts the changes to the weights, so answers cached with older weights are not used
+    private volatile long _weightsVersion;
+
+    // Answers for images seen before, or null when predictions are not cached
+    private volatile PredictionCache _cache;
+
+    // Where the metrics of every epoch go, or null when they are not collected
+    private TrainingMetrics _metrics;
+
+    // Weight updates so far this epoch, and bytes allocated this epoch by each worker and by the updates
+    private int _steps;
+    private final long[] _allocatedBytes;
+    private long _updateAllocatedBytes;
 
     public NeuralNetwork(List<Layer> _layers, double scaleFactor) {
+        this(_layers, scaleFactor, 1, 1);
+    }
+
+    /**
+     * Creates a new network
+     * @param _layers the layers of the network, in order
+     * @param scaleFactor the factor the image data is divided by before entering the network
+     * @param batchSize the number of images whose gradients are accumulated before the weights are updated
+     * @param threads the number of workers each batch is split across during training
+     */
+    public NeuralNetwork(List<Layer> _layers, double scaleFactor, int batchSize, int threads) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, was " + batchSize);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1, was " + threads);
+        }
+
         this._layers = _layers;
         this.scaleFactor = scaleFactor;
+        this.batchSize = batchSize;
         linkLayers();
+
+        _capacity = (batchSize + threads - 1) / threads;
+        _inputs = new Workspace[threads];
+        _errors = new Workspace[threads];
+        _allocatedBytes = new long[threads];
+
+        _contexts = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            _contexts.add(new Context(_layers, _capacity));
+            _errors[i] = new Workspace(_capacity, _layers.get(_layers.size() - 1).getOutputElements(), 1, 1);
+        }
+        _pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * Stops the worker threads of the network. The network can still be trained and used afterwards,
+     * but every slice of a batch then runs on the calling thread. Closing twice does nothing.
+     */
+    @Override
+    public void close() {
+        if (_pool != null) {
+            _pool.shutdown();
+        }
     }
 
     /**
@@ -27,6 +119,10 @@ public class NeuralNetwork {
      */
     private void linkLayers() {
 
+        for(int i = 0; i < _layers.size(); i++){
+            _layers.get(i).set_index(i);
+        }
+
         if(_layers.size() <= 1) return;
 
         for(int i = 0; i < _layers.size(); i++){
@@ -56,14 +152,31 @@ public class NeuralNetwork {
      * @return the error
      */
     public double[] getErrors(double[] networkOutput, int correctAnswer){
-        int numClasses = networkOutput.length;
-        double[] expected = new double[numClasses];
-
-        // Set the expected output to 1 for the correct answer
-        expected[correctAnswer] = 1;
+        double[] errors = new double[networkOutput.length];
+        writeErrors(networkOutput, 0, correctAnswer, errors, 0, networkOutput.length);
+        return errors;
+    }
 
-        // Return the difference between the expected and the actual output.
-        return add(networkOutput, multiply(expected, -1));
+    /**
+     * Writes the difference between the output of the network and the expected output, which is 1 for the
+     * correct answer and 0 for every other class, into the caller's buffer
+     * @param output the array holding the output of the network
+     * @param outputOffset the position of the image's first output value
+     * @param correctAnswer the correct answer
+     * @param errors the array to write the error to
+     * @param errorOffset the position to write the first error value at
+     * @param length the number of classes
+     * @return the sum of the squared errors
+     */
+    private static double writeErrors(double[] output, int outputOffset, int correctAnswer,
+                                      double[] errors, int errorOffset, int length) {
+        double sum = 0;
+        for (int j = 0; j < length; j++) {
+            double e = j == correctAnswer ? output[outputOffset + j] - 1 : output[outputOffset + j];
+            errors[errorOffset + j] = e;
+            sum += e * e;
+        }
+        return sum;
     }
 
     /**
@@ -72,13 +185,24 @@ public class NeuralNetwork {
      * @return the index of the maximum value
      */
     private int getMaxIndex(double[] input){
+        return getMaxIndex(input, 0, input.length);
+    }
+
+    /**
+     * Returns the index of the maximum value in a range of the input array
+     * @param input the input array
+     * @param offset the start of the range
+     * @param length the length of the range
+     * @return the index of the maximum value, relative to the offset
+     */
+    static int getMaxIndex(double[] input, int offset, int length){
 
         double max = 0;
         int index = 0;
 
-        for(int i = 0; i < input.length; i++){
-            if(input[i] >= max){
-                max = input[i];
+        for(int i = 0; i < length; i++){
+            if(input[offset + i] >= max){
+                max = input[offset + i];
                 index = i;
             }
 
@@ -88,35 +212,353 @@ public class NeuralNetwork {
     }
 
     /**
-     * Guesses the label of the image based on the output of the first layer of the network
+     * Copies the image into a single feature map tensor, normalizing by the scale factor
+     * @param image the image to copy
+     * @return the input tensor for the first layer of the network
+     */
+    private Tensor toTensor(Image image) {
+        return toTensor(List.of(image), 0, 1);
+    }
+
+    /**
+     * Copies a range of images into a batch tensor, normalizing by the scale factor
+     * @param images the images to copy from
+     * @param from the first image, inclusive
+     * @param to the last image, exclusive
+     * @return the input tensor for the first layer of the network, one sample per image
+     */
+    private Tensor toTensor(List<Image> images, int from, int to) {
+        double[][] first = images.get(from).getData();
+        return copyImages(images, from, to, new Tensor(to - from, 1, first.length, first[0].length));
+    }
+
+    /**
+     * Copies a range of images into a worker's input buffer, normalizing by the scale factor
+     * @param worker the worker
+     * @param images the images to copy from
+     * @param from the first image, inclusive
+     * @param to the last image, exclusive
+     * @return the input tensor for the first layer of the network, valid until the worker's next slice
+     */
+    private Tensor toTensor(int worker, List<Image> images, int from, int to) {
+        double[][] first = images.get(from).getData();
+        return copyImages(images, from, to, inputBuffer(worker, first.length, first[0].length, to - from));
+    }
+
+    /**
+     * Copies a range of images into a tensor, normalizing by the scale factor
+     * @param images the images to copy from
+     * @param from the first image, inclusive
+     * @param to the last image, exclusive
+     * @param tensor the tensor to fill, one sample per image
+     * @return the filled tensor
+     */
+    private Tensor copyImages(List<Image> images, int from, int to, Tensor tensor) {
+        double[] out = tensor.getData();
+        double scale = 1.0 / scaleFactor;
+
+        int i = 0;
+        for (int n = from; n < to; n++) {
+            for (double[] row : images.get(n).getData()) {
+                for (double value : row) {
+                    out[i++] = value * scale;
+                }
+            }
+        }
+
+        return tensor;
+    }
+
+    /**
+     * Copies a range of images stored back to back in a flat buffer into a batch tensor,
+     * normalizing by the scale factor
+     * @param pixels the raw pixel values of every image
+     * @param rows the number of rows in each image
+     * @param cols the number of columns in each image
+     * @param from the first image, inclusive
+     * @param to the last image, exclusive
+     * @return the input tensor for the first layer of the network, one sample per image
+     */
+    private Tensor toTensor(double[] pixels, int rows, int cols, int from, int to) {
+        return copyPixels(pixels, from, to, new Tensor(to - from, 1, rows, cols));
+    }
+
+    /**
+     * Copies a range of images stored back to back in a flat buffer into a worker's input buffer,
+     * normalizing by the scale factor
+     * @param worker the worker
+     * @param pixels the raw pixel values of every image
+     * @param rows the number of rows in each image
+     * @param cols the number of columns in each image
+     * @param from the first image, inclusive
+     * @param to the last image, exclusive
+     * @return the input tensor for the first layer of the network, valid until the worker's next slice
+     */
+    private Tensor toTensor(int worker, double[] pixels, int rows, int cols, int from, int to) {
+        return copyPixels(pixels, from, to, inputBuffer(worker, rows, cols, to - from));
+    }
+
+    /**
+     * Copies a range of images stored back to back in a flat buffer into a tensor, normalizing by the scale factor
+     * @param pixels the raw pixel values of every image
+     * @param from the first image, inclusive
+     * @param to the last image, exclusive
+     * @param tensor the tensor to fill, one sample per image
+     * @return the filled tensor
+     */
+    private Tensor copyPixels(double[] pixels, int from, int to, Tensor tensor) {
+        double[] out = tensor.getData();
+        double scale = 1.0 / scaleFactor;
+        int start = from * tensor.getSampleStride();
+
+        for (int i = 0; i < tensor.size(); i++) {
+            out[i] = pixels[start + i] * scale;
+        }
+
+        return tensor;
+    }
+
+    /**
+     * Returns a worker's input buffer, created the first time the worker sees images of this size
+     * @param worker the worker
+     * @param rows the number of rows in each image
+     * @param cols the number of columns in each image
+     * @param count the number of images
+     * @return a tensor with room for the images
+     */
+    private Tensor inputBuffer(int worker, int rows, int cols, int count) {
+        Workspace workspace = _inputs[worker];
+
+        if (workspace == null || workspace.getRows() != rows || workspace.getCols() != cols) {
+            workspace = new Workspace(_capacity, 1, rows, cols);
+            _inputs[worker] = workspace;
+        }
+
+        return workspace.get(count);
+    }
+
+    /**
+     * Guesses the label of the image based on the output of the first layer of the network.
+     * This only reads the weights, so it is safe to call from many threads at once
+     * as long as the network is not being trained at the same time.
      * @param image the image to guess
      * @return the guessed number
      */
     public int guess(Image image){
-        List<double[][]> inList = new ArrayList<>();
+        PredictionCache cache = _cache;
+        if (cache != null) {
+            return cache.guess(image);
+        }
 
-        // Add the data of the image to the input list, normalizing by the scale factor
-        inList.add(multiply(image.getData(), (1.0 / scaleFactor)));
+        return getMaxIndex(scores(image));
+    }
 
+    /**
+     * Returns the output of the network for one image
+     * @param image the image
+     * @return the output vector
+     */
+    double[] scores(Image image) {
         // Get the output from the first layer of the network
-        double[] out = _layers.get(0).getOutput(inList);
+        Tensor out = _layers.get(0).getOutput(toTensor(image));
+
+        return out.toArray();
+    }
 
-        return getMaxIndex(out);
+    /**
+     * Guesses the labels of many images at once. The images are split over the network's workers
+     * and each worker pushes blocks of images through every layer as a single batch.
+     * @param images the images to guess
+     * @return the guessed labels and the output of the network for every image
+     */
+    public Prediction predict(List<Image> images) {
+        PredictionCache cache = _cache;
+        if (cache != null && !images.isEmpty()) {
+            return cache.predict(images);
+        }
+
+        return predict(images.size(), (from, to) -> toTensor(images, from, to));
+    }
+
+    /**
+     * Guesses the labels of many images stored back to back in a flat buffer of raw pixel values,
+     * in the same way as {@link #predict(List)}
+     * @param pixels the pixel values of every image, rows * cols values per image
+     * @param rows the number of rows in each image
+     * @param cols the number of columns in each image
+     * @return the guessed labels and the output of the network for every image
+     */
+    public Prediction predict(double[] pixels, int rows, int cols) {
+        PredictionCache cache = _cache;
+        if (cache != null) {
+            return cache.predict(pixels, rows, cols);
+        }
+
+        return computePrediction(pixels, rows, cols);
+    }
+
+    /**
+     * Runs a flat buffer of images through the network without looking in the cache, see {@link #predict(double[], int, int)}
+     */
+    Prediction computePrediction(double[] pixels, int rows, int cols) {
+        if (pixels.length % (rows * cols) != 0) {
+            throw new IllegalArgumentException("Buffer of " + pixels.length + " values does not hold whole "
+                    + rows + "x" + cols + " images");
+        }
+
+        return predict(pixels.length / (rows * cols), (from, to) -> toTensor(pixels, rows, cols, from, to));
+    }
+
+    /**
+     * Runs inference on a number of images in parallel slices and blocks
+     * @param count the number of images
+     * @param inputs builds the input tensor for a range of images
+     * @return the guessed labels and the output of the network for every image
+     */
+    private Prediction predict(int count, BiFunction<Integer, Integer, Tensor> inputs) {
+        int classes = _layers.get(_layers.size() - 1).getOutputElements();
+        int[] labels = new int[count];
+        double[] scores = new double[count * classes];
+
+        runSlices(0, count, (worker, sliceFrom, sliceTo) -> {
+            for (int from = sliceFrom; from < sliceTo; from += PREDICT_BLOCK) {
+                int to = Math.min(from + PREDICT_BLOCK, sliceTo);
+
+                Tensor out = _layers.get(0).getOutput(inputs.apply(from, to));
+                System.arraycopy(out.getData(), out.getOffset(), scores, from * classes, (to - from) * classes);
+
+                for (int n = from; n < to; n++) {
+                    labels[n] = getMaxIndex(scores, n * classes, classes);
+                }
+            }
+        });
+
+        return new Prediction(labels, scores, classes);
+    }
+
+    /**
+     * Saves the network's architecture and trained weights to a file, see {@link Checkpoint}
+     * @param path the path of the file to write
+     */
+    public void save(String path) throws IOException {
+        Checkpoint.save(this, path);
+    }
+
+    /**
+     * Loads a network saved with {@link #save(String)}
+     * @param path the path to the file
+     * @return the network, with the batch size and thread count it was saved with
+     */
+    public static NeuralNetwork load(String path) throws IOException {
+        return Checkpoint.load(path);
+    }
+
+    /**
+     * Copies the trained weights of every layer, so they can be restored or saved later
+     * while the network carries on training
+     * @return the copy
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Puts back the weights and epoch count of a snapshot of this network, or of a network with the same layers
+     * @param snapshot the snapshot
+     */
+    public void restore(Snapshot snapshot) {
+        snapshot.copyTo(this);
+    }
+
+    /**
+     * Returns the number of epochs trained so far, counting those of a loaded checkpoint,
+     * which is the epoch to pass to the next call to train
+     * @return the number of epochs trained
+     */
+    public int getEpochs() {
+        return _epochs;
+    }
+
+    void setEpochs(int epochs) {
+        _epochs = epochs;
+    }
+
+    /**
+     * Records how the raw training images were normalized, so the same statistics can be applied to images
+     * the network is asked about once it is saved and loaded again. The network itself does not apply them.
+     * @param normalization the statistics of the training images, or null if they are not known
+     */
+    public void setNormalization(Normalization normalization) {
+        _normalization = normalization;
     }
 
     /**
-     * Tests the accuracy of the network on a set of images
+     * Returns how the raw training images were normalized
+     * @return the statistics of the training images, or null if they are not known
+     */
+    public Normalization getNormalization() {
+        return _normalization;
+    }
+
+    /**
+     * Caches the answers of {@link #guess}, both predict methods and so {@link #test} for images seen before,
+     * see {@link PredictionCache}. Answers are dropped automatically when the network trains or is restored.
+     * @param capacity the most images held, rounded up to a multiple of 16, or 0 to stop caching
+     */
+    public void setPredictionCache(int capacity) {
+        _cache = capacity > 0 ? new PredictionCache(this, capacity) : null;
+    }
+
+    /**
+     * Returns the cache of predictions, whose counters show how often it is hit
+     * @return the cache, or null when predictions are not cached
+     */
+    public PredictionCache getPredictionCache() {
+        return _cache;
+    }
+
+    /**
+     * Returns a number that changes whenever the weights do
+     * @return the version of the weights
+     */
+    long getWeightsVersion() {
+        return _weightsVersion;
+    }
+
+    /**
+     * Records that the weights have changed, which makes cached predictions stale
+     */
+    void weightsChanged() {
+        _weightsVersion++;
+    }
+
+    /**
+     * Returns the number of output values per image
+     * @return the number of classes
+     */
+    int getOutputClasses() {
+        return _layers.get(_layers.size() - 1).getOutputElements();
+    }
+
+    /**
+     * Returns the number of workers each training batch is split across
+     * @return the number of threads
+     */
+    public int getThreads() {
+        return _contexts.size();
+    }
+
+    /**
+     * Tests the accuracy of the network on a set of images, spread over the network's workers
      * @param images the list of images to test on
      * @return the accuracy of the network
      */
     public float test(List<Image> images) {
+        int[] labels = predict(images).getLabels();
         int correct = 0;
 
-        for (Image img: images) {
-            // Guess the label of the image
-            int guess = guess(img);
-
-            if (guess == img.getLabel()) {
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] == images.get(i).getLabel()) {
                 correct++;
             }
         }
@@ -125,41 +567,366 @@ public class NeuralNetwork {
     }
 
     /**
-     * Trains the network on a list of images
+     * Trains the network on a list of images, in mini-batches of the network's batch size.
+     * Each batch is split into one contiguous slice per worker; the workers run forward and
+     * back propagation on their slice in parallel, each in its own context, and the gradients
+     * are then applied to the shared weights once per batch, reduced in worker order.
      * @param images the list of images to train on
      * @return the cost of the network
      */
     public double train(int epoch, List<Image> images) {
 
-        List<Double> costs = new ArrayList<Double>();
+        long start = System.nanoTime();
+        resetMetrics();
+        double[] costs = _training.trainOn(images);
 
-        for (Image img:images) {
+        try {
+            for (int from = 0; from < images.size(); from += batchSize) {
+                int to = Math.min(from + batchSize, images.size());
 
-            List<double[][]> inList = new ArrayList<>();
+                runSlices(from, to, _training);
 
-            // Scale the image down to avoid big numbers
-            inList.add(multiply(img.getData(), (1.0 / scaleFactor)));
+                // Update the weights once for the whole batch
+                applyGradients(to - from, epoch);
+            }
+        } finally {
+            _training.clear();
+        }
 
-            // Get the output of the network
-            double[] out = _layers.get(0).getOutput(inList);
+        _epochs = Math.max(_epochs, epoch + 1);
 
-            // Calculate the error based on the output and the label of the image
-            double[] dldO = getErrors(out, img.getLabel());
+        // Calculate and return the average cost
+        double cost = Arrays.stream(costs, 0, images.size()).average().getAsDouble();
+        endMetrics(epoch, cost, images.size(), start);
+        return cost;
 
-            // Calculate the cost function
-            double cost = 0.5 * Arrays.stream(dldO).map(x -> x * x).sum();
+    }
 
-            // Add the cost to the array of costs
-            costs.add(cost);
+    /**
+     * Trains the network on a stream of batches, such as a {@link helpers.StreamingDataLoader}, which never
+     * holds the data set in memory, or a {@link helpers.BatchPipeline}, which prepares the next batch on
+     * another thread while this one trains. Each batch is trained in mini-batches of the
+     * network's batch size, in the same way as {@link #train(int, List)}. The images are seen in
+     * the order the stream produces them, so they are not shuffled across batches. An iterator that holds a
+     * resource, such as the file of a streaming loader, is closed even if training stops early.
+     * @param epoch the current epoch
+     * @param batches the batches of normalized images to train on
+     * @return the average cost of the network over every image in the stream
+     */
+    public double train(int epoch, Iterable<Batch> batches) {
+
+        long start = System.nanoTime();
+        resetMetrics();
+        double totalCost = 0;
+        long count = 0;
+        Iterator<Batch> iterator = batches.iterator();
+
+        try {
+            while (iterator.hasNext()) {
+                Batch batch = iterator.next();
+                int size = batch.size();
+                double[] costs = _training.trainOn(batch);
+
+                for (int from = 0; from < size; from += batchSize) {
+                    int to = Math.min(from + batchSize, size);
+
+                    runSlices(from, to, _training);
 
-            // Perform back propagation on fully connected layer
-            _layers.get((_layers.size() - 1)).backPropagation(dldO, epoch);
+                    // Update the weights once for the whole batch
+                    applyGradients(to - from, epoch);
+                }
 
+                for (int i = 0; i < size; i++) {
+                    totalCost += costs[i];
+                }
+                count += size;
+            }
+        } finally {
+            _training.clear();
+            if (iterator instanceof Closeable closeable) {
+                try {
+                    closeable.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
         }
 
-        // Calculate and return the average cost
-        return costs.stream().mapToDouble(x -> x).average().getAsDouble();
+        if (count == 0) {
+            throw new IllegalArgumentException("No images to train on");
+        }
+
+        _epochs = Math.max(_epochs, epoch + 1);
+        endMetrics(epoch, totalCost / count, (int) count, start);
+        return totalCost / count;
+    }
+
+    /**
+     * Updates the weights of every layer with the gradients the workers accumulated for a batch
+     * @param count the number of images in the batch
+     * @param epoch the current epoch
+     */
+    private void applyGradients(int count, int epoch) {
+        long allocated = _metrics != null ? TrainingMetrics.allocatedBytes() : 0;
+
+        // Indexed rather than iterated, so updating after every batch allocates no iterator
+        for (int i = 0; i < _layers.size(); i++) {
+            _layers.get(i).applyGradients(_contexts, count, epoch);
+        }
+        weightsChanged();
+
+        if (_metrics != null) {
+            _updateAllocatedBytes += TrainingMetrics.allocatedBytes() - allocated;
+            _steps++;
+        }
+    }
+
+    /**
+     * Attaches a collector that is sent the metrics of every epoch this network trains: the time each
+     * layer spends in its passes, the norm of its gradients, the throughput and the allocations.
+     * Without one, none of these are measured.
+     * @param metrics the collector, or null to stop collecting
+     */
+    public void setMetrics(TrainingMetrics metrics) {
+        _metrics = metrics;
+
+        for (Context context : _contexts) {
+            context.setTiming(metrics != null);
+        }
+        for (Layer layer : _layers) {
+            layer.set_recordGradients(metrics != null);
+        }
+    }
+
+    /**
+     * Clears the measurements of the last epoch, if metrics are collected
+     */
+    private void resetMetrics() {
+        if (_metrics == null) {
+            return;
+        }
+
+        for (Context context : _contexts) {
+            context.resetTimings();
+        }
+        for (Layer layer : _layers) {
+            layer.resetGradientNorm();
+        }
+        Arrays.fill(_allocatedBytes, 0);
+        _updateAllocatedBytes = 0;
+        _steps = 0;
+    }
 
+    /**
+     * Sends the measurements of an epoch to the metrics collector, if there is one
+     * @param epoch the epoch
+     * @param loss the average cost of the epoch
+     * @param samples the number of images trained on
+     * @param start the time the epoch started, from System.nanoTime()
+     */
+    private void endMetrics(int epoch, double loss, int samples, long start) {
+        if (_metrics == null) {
+            return;
+        }
+
+        long nanos = System.nanoTime() - start;
+        int count = _layers.size();
+        String[] names = new String[count];
+        long[] forwardNanos = new long[count];
+        long[] backwardNanos = new long[count];
+        double[] gradientNorms = new double[count];
+
+        for (int i = 0; i < count; i++) {
+            names[i] = i + ":" + _layers.get(i).getClass().getSimpleName();
+            gradientNorms[i] = _layers.get(i).getGradientNorm();
+
+            for (Context context : _contexts) {
+                forwardNanos[i] += context.getForwardNanos(i);
+                backwardNanos[i] += context.getBackwardNanos(i);
+            }
+        }
+
+        long allocated = -1;
+        if (TrainingMetrics.isAllocationSupported()) {
+            allocated = _updateAllocatedBytes;
+            for (long bytes : _allocatedBytes) {
+                allocated += bytes;
+            }
+        }
+
+        _metrics.endEpoch(new EpochMetrics(epoch, loss, Double.NaN, samples, _steps, nanos, allocated,
+                names, forwardNanos, backwardNanos, gradientNorms));
+    }
+
+    /**
+     * Work done by one worker on a contiguous range of images
+     */
+    private interface SliceTask {
+        void run(int worker, int from, int to);
+    }
+
+    /**
+     * Builds the input tensor of a worker for a contiguous range of images
+     */
+    private interface SliceInput {
+        Tensor get(int worker, int from, int to);
+    }
+
+    /**
+     * Trains the workers on the images of the list or batch it was last pointed at. The network keeps one and
+     * points it at every new epoch or batch, and the cost of each image goes to a buffer grown to the largest
+     * number of images seen, so training a batch allocates no tasks or cost arrays.
+     */
+    private final class TrainingTask implements SliceTask, SliceInput, IntUnaryOperator {
+
+        private List<Image> _images;
+        private Batch _batch;
+        private double[] _costs = new double[0];
+
+        /**
+         * Points the task at a list of images
+         * @param images the images
+         * @return the buffer the cost of each image is written to, by position
+         */
+        double[] trainOn(List<Image> images) {
+            _images = images;
+            _batch = null;
+            return costs(images.size());
+        }
+
+        /**
+         * Points the task at a batch
+         * @param batch the batch
+         * @return the buffer the cost of each image is written to, by position
+         */
+        double[] trainOn(Batch batch) {
+            _images = null;
+            _batch = batch;
+            return costs(batch.size());
+        }
+
+        /**
+         * Lets go of the last images trained on
+         */
+        void clear() {
+            _images = null;
+            _batch = null;
+        }
+
+        private double[] costs(int size) {
+            if (_costs.length < size) {
+                _costs = new double[size];
+            }
+            return _costs;
+        }
+
+        @Override
+        public void run(int worker, int from, int to) {
+            trainSlice(worker, this, this, from, to, _costs);
+        }
+
+        @Override
+        public Tensor get(int worker, int from, int to) {
+            return _batch != null
+                    ? toTensor(worker, _batch.getPixels(), _batch.getRows(), _batch.getCols(), from, to)
+                    : toTensor(worker, _images, from, to);
+        }
+
+        @Override
+        public int applyAsInt(int n) {
+            return _batch != null ? _batch.getLabel(n) : _images.get(n).getLabel();
+        }
+    }
+
+    /**
+     * Splits a range of images into one contiguous slice per worker and runs the task on every
+     * slice, in parallel when the network has more than one worker and has not been closed.
+     * A single worker runs its slice directly; handing slices to the pool allocates a task and a future for each.
+     * @param from the first image, inclusive
+     * @param to the last image, exclusive
+     * @param task the work to do on each slice
+     */
+    private void runSlices(int from, int to, SliceTask task) {
+        if (_pool == null) {
+            task.run(0, from, to);
+            return;
+        }
+
+        int slices = _contexts.size();
+        int sliceSize = (to - from + slices - 1) / slices;
+
+        // Each worker's buffers only hold one slice, so a closed network still splits the range the same way
+        if (_pool.isShutdown()) {
+            for (int start = from, worker = 0; start < to; start += sliceSize, worker++) {
+                task.run(worker, start, Math.min(start + sliceSize, to));
+            }
+            return;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+
+        for (int start = from, worker = 0; start < to; start += sliceSize, worker++) {
+            int sliceWorker = worker;
+            int sliceFrom = start;
+            int sliceTo = Math.min(start + sliceSize, to);
+
+            tasks.add(() -> {
+                task.run(sliceWorker, sliceFrom, sliceTo);
+                return null;
+            });
+        }
+
+        for (Future<Void> future : _pool.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for workers", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Worker failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Runs forward and back propagation for a range of images, accumulating gradients in the worker's context.
+     * Every tensor involved lives in the worker's buffers, so no tensors are allocated.
+     * @param worker the worker
+     * @param inputs builds the input tensor for a range of images
+     * @param labels returns the label of an image by position
+     * @param from the first image, inclusive
+     * @param to the last image, exclusive
+     * @param costs the cost of each image, by position
+     */
+    private void trainSlice(int worker, SliceInput inputs, IntUnaryOperator labels,
+                            int from, int to, double[] costs) {
+
+        Context context = _contexts.get(worker);
+        long allocated = _metrics != null ? TrainingMetrics.allocatedBytes() : 0;
+
+        // Scale the images down to avoid big numbers and get the output of the network
+        Tensor out = _layers.get(0).getOutput(inputs.get(worker, from, to), context);
+        int outLength = out.getSampleStride();
+
+        Tensor dldO = _errors[worker].get(to - from);
+        double[] output = out.getData();
+        double[] error = dldO.getData();
+
+        for (int n = from; n < to; n++) {
+            // Calculate the error based on the output and the label of the image, straight into the worker's buffer
+            double cost = writeErrors(output, out.index(n - from, 0, 0, 0), labels.applyAsInt(n),
+                    error, dldO.index(n - from, 0, 0, 0), outLength);
+
+            // Calculate the cost function
+            costs[n] = 0.5 * cost;
+        }
+
+        // Perform back propagation on fully connected layer
+        _layers.get((_layers.size() - 1)).backPropagation(dldO, context);
+
+        if (_metrics != null) {
+            _allocatedBytes[worker] += TrainingMetrics.allocatedBytes() - allocated;
+        }
     }
 
 }
@@ -0,0 +1,42 @@
+package network;
+
+import java.util.Arrays;
+
+/**
+ * The result of running a batch of images through the network
+ * @param labels the guessed label of each image
+ * @param scores the output of the network for each image, stored back to back
+ * @param classes the number of output values per image
+ */
+public record Prediction(int[] labels, double[] scores, int classes) {
+
+    public int[] getLabels() {
+        return labels;
+    }
+
+    public double[] getScores() {
+        return scores;
+    }
+
+    public int size() {
+        return labels.length;
+    }
+
+    /**
+     * Returns the guessed label of one image
+     * @param n the position of the image in the batch
+     * @return the guessed label
+     */
+    public int getLabel(int n) {
+        return labels[n];
+    }
+
+    /**
+     * Returns the output of the network for one image
+     * @param n the position of the image in the batch
+     * @return a copy of the image's output vector
+     */
+    public double[] getScores(int n) {
+        return Arrays.copyOfRange(scores, n * classes, (n + 1) * classes);
+    }
+}
@@ -0,0 +1,344 @@
+package network;
+
+import data.Image;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of the network's output for images it has seen, so an image that comes again is answered
+ * without a forward pass. UCI digits are 8x8 grids of counts from 0 to 16, and the same grid comes up often.
+ *
+ * Images are looked up by a 64-bit hash of their pixel values, and a hit is only used if the stored pixels
+ * match exactly, so two images with the same hash never get each other's answer. The cache is split into
+ * stripes by hash, each an LRU map behind its own lock, so lookups from many threads rarely wait on each
+ * other. Each stripe holds an equal share of the capacity, which is rounded up to a multiple of the number
+ * of stripes, and evicts its least recently used image when it is full.
+ *
+ * Every answer is tagged with the version of the weights it was computed with. Training or restoring the
+ * network bumps the version, after which older answers are misses and the cache empties itself on the next
+ * lookup. Weights changed directly through {@link layers.Layer#getParameters()} are not noticed.
+ */
+public class PredictionCache {
+
+    private static final int STRIPES = 16;
+
+    private record Entry(double[] pixels, long version, int label, double[] scores) {
+    }
+
+    /**
+     * One stripe: a map in access order that drops its eldest entry when it grows past its capacity
+     */
+    private final class Stripe {
+
+        private final LinkedHashMap<Long, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final int _capacity;
+
+        Stripe(int capacity) {
+            _capacity = capacity;
+        }
+
+        Entry get(long hash) {
+            return _entries.get(hash);
+        }
+
+        void put(long hash, Entry entry) {
+            _entries.put(hash, entry);
+            if (_entries.size() > _capacity) {
+                Iterator<Entry> eldest = _entries.values().iterator();
+                eldest.next();
+                eldest.remove();
+                _evictions.increment();
+            }
+        }
+
+        void clear() {
+            _entries.clear();
+        }
+
+        int size() {
+            return _entries.size();
+        }
+    }
+
+    private final NeuralNetwork _network;
+    private final int _capacity;
+    private final Stripe[] _stripes;
+
+    // The version of the weights the cache was last emptied for
+    private final AtomicLong _version;
+
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+    private final LongAdder _evictions = new LongAdder();
+    private final LongAdder _invalidations = new LongAdder();
+
+    /**
+     * @param network the network whose answers are cached
+     * @param capacity the most images held, spread over the stripes and rounded up to a multiple of their number
+     */
+    PredictionCache(NeuralNetwork network, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1, was " + capacity);
+        }
+
+        int stripeCapacity = (capacity + STRIPES - 1) / STRIPES;
+
+        _network = network;
+        _capacity = stripeCapacity * STRIPES;
+        _stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            _stripes[i] = new Stripe(stripeCapacity);
+        }
+        _version = new AtomicLong(network.getWeightsVersion());
+    }
+
+    /**
+     * Guesses the label of one image, from the cache if it has been seen with the current weights
+     * @param image the image to guess
+     * @return the guessed label
+     */
+    int guess(Image image) {
+        double[] pixels = flatten(image);
+        long version = checkVersion();
+        long hash = hash(pixels, 0, pixels.length);
+
+        Entry entry = lookup(pixels, 0, pixels.length, hash, version);
+        if (entry != null) {
+            return entry.label();
+        }
+
+        double[] scores = _network.scores(image);
+        int label = NeuralNetwork.getMaxIndex(scores, 0, scores.length);
+        store(pixels, hash, version, label, scores);
+        return label;
+    }
+
+    /**
+     * Guesses the labels of many images, taking those seen before from the cache, see {@link #predict(double[], int, int)}
+     * @param images the images to guess, at least one
+     * @return the guessed labels and the output of the network for every image
+     */
+    Prediction predict(List<Image> images) {
+        double[][] first = images.get(0).getData();
+        int rows = first.length;
+        int cols = first[0].length;
+
+        double[] pixels = new double[images.size() * rows * cols];
+        for (int n = 0; n < images.size(); n++) {
+            flatten(images.get(n), pixels, n * rows * cols);
+        }
+        return predict(pixels, rows, cols);
+    }
+
+    /**
+     * Guesses the labels of many images stored back to back, taking those seen before from the cache
+     * and running the rest through the network in one batch
+     * @param pixels the pixel values of every image, rows * cols values per image
+     * @param rows the number of rows in each image
+     * @param cols the number of columns in each image
+     * @return the guessed labels and the output of the network for every image
+     */
+    Prediction predict(double[] pixels, int rows, int cols) {
+        int size = rows * cols;
+        if (pixels.length % size != 0) {
+            throw new IllegalArgumentException("Buffer of " + pixels.length + " values does not hold whole "
+                    + rows + "x" + cols + " images");
+        }
+
+        int count = pixels.length / size;
+        int classes = _network.getOutputClasses();
+        int[] labels = new int[count];
+        double[] scores = new double[count * classes];
+        long[] hashes = new long[count];
+        int[] misses = new int[count];
+        int missCount = 0;
+
+        long version = checkVersion();
+        for (int n = 0; n < count; n++) {
+            hashes[n] = hash(pixels, n * size, size);
+            Entry entry = lookup(pixels, n * size, size, hashes[n], version);
+
+            if (entry != null) {
+                labels[n] = entry.label();
+                System.arraycopy(entry.scores(), 0, scores, n * classes, classes);
+            } else {
+                misses[missCount++] = n;
+            }
+        }
+
+        if (missCount > 0) {
+            double[] missed = new double[missCount * size];
+            for (int m = 0; m < missCount; m++) {
+                System.arraycopy(pixels, misses[m] * size, missed, m * size, size);
+            }
+
+            Prediction computed = _network.computePrediction(missed, rows, cols);
+            for (int m = 0; m < missCount; m++) {
+                int n = misses[m];
+                labels[n] = computed.getLabel(m);
+                System.arraycopy(computed.getScores(), m * classes, scores, n * classes, classes);
+                store(Arrays.copyOfRange(missed, m * size, (m + 1) * size), hashes[n], version,
+                        labels[n], computed.getScores(m));
+            }
+        }
+
+        return new Prediction(labels, scores, classes);
+    }
+
+    /**
+     * Empties the cache if the weights have changed since it was last emptied
+     * @return the current version of the weights
+     */
+    private long checkVersion() {
+        long version = _network.getWeightsVersion();
+        long seen = _version.get();
+
+        if (version != seen && _version.compareAndSet(seen, version)) {
+            for (Stripe stripe : _stripes) {
+                synchronized (stripe) {
+                    stripe.clear();
+                }
+            }
+            _invalidations.increment();
+        }
+        return version;
+    }
+
+    private Entry lookup(double[] pixels, int offset, int length, long hash, long version) {
+        Stripe stripe = stripe(hash);
+        Entry entry;
+        synchronized (stripe) {
+            entry = stripe.get(hash);
+        }
+
+        if (entry != null && entry.version() == version
+                && Arrays.equals(entry.pixels(), 0, length, pixels, offset, offset + length)) {
+            _hits.increment();
+            return entry;
+        }
+
+        _misses.increment();
+        return null;
+    }
+
+    private void store(double[] pixels, long hash, long version, int label, double[] scores) {
+        // An answer computed while the weights changed is already stale
+        if (version != _network.getWeightsVersion()) {
+            return;
+        }
+
+        Stripe stripe = stripe(hash);
+        synchronized (stripe) {
+            stripe.put(hash, new Entry(pixels, version, label, scores));
+        }
+    }
+
+    private Stripe stripe(long hash) {
+        return _stripes[(int) (hash ^ (hash >>> 32)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Hashes a run of pixel values, treating 0.0 and -0.0 alike
+     */
+    private static long hash(double[] pixels, int offset, int length) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= Double.doubleToLongBits(pixels[i] + 0.0);
+            hash *= 0x9E3779B97F4A7C15L;
+            hash ^= hash >>> 29;
+        }
+        return hash;
+    }
+
+    private static double[] flatten(Image image) {
+        double[][] data = image.getData();
+        double[] pixels = new double[data.length * data[0].length];
+        flatten(image, pixels, 0);
+        return pixels;
+    }
+
+    private static void flatten(Image image, double[] pixels, int offset) {
+        double[][] data = image.getData();
+        for (int r = 0; r < data.length; r++) {
+            System.arraycopy(data[r], 0, pixels, offset + r * data[0].length, data[0].length);
+        }
+    }
+
+    /**
+     * Empties the cache
+     */
+    public void clear() {
+        for (Stripe stripe : _stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of images held
+     * @return the number of images
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : _stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the most images held, the capacity asked for rounded up to a multiple of the number of stripes
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return _capacity;
+    }
+
+    public long getHits() {
+        return _hits.sum();
+    }
+
+    public long getMisses() {
+        return _misses.sum();
+    }
+
+    /**
+     * Returns the number of images dropped to make room for others
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return _evictions.sum();
+    }
+
+    /**
+     * Returns the number of times the cache was emptied because the weights changed
+     * @return the number of invalidations
+     */
+    public long getInvalidations() {
+        return _invalidations.sum();
+    }
+
+    /**
+     * Returns the share of lookups answered from the cache
+     * @return the hit rate, or 0 before any lookup
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidations, %d of %d images held",
+                getHits(), getMisses(), getHitRate() * 100, getEvictions(), getInvalidations(), size(), _capacity);
+    }
+}
@@ -0,0 +1,84 @@
+package network;
+
+import data.Image;
+import layers.Layer;
+
+import java.util.List;
+
+/**
+ * How a network converted to a compact format compares with the double network it was made from on a set of images
+ * @param format the name of the compact format, such as int8 or float32
+ * @param images the number of images tested
+ * @param floatAccuracy the accuracy of the double network
+ * @param quantizedAccuracy the accuracy of the converted network
+ * @param agreement the share of images both networks gave the same label
+ * @param floatBytes the memory taken by the double network's parameters
+ * @param quantizedBytes the memory taken by the converted network's parameters
+ * @param floatNanos the time the double network took to predict every image
+ * @param quantizedNanos the time the converted network took to predict every image
+ */
+public record QuantizationReport(String format, int images, float floatAccuracy, float quantizedAccuracy, float agreement,
+                                 long floatBytes, long quantizedBytes, long floatNanos, long quantizedNanos) {
+
+    /**
+     * Builds the report from the predictions of both networks on the same images
+     * @param format the name of the compact format
+     * @param network the double network
+     * @param expected the predictions of the double network
+     * @param floatNanos the time the double network took
+     * @param actual the predictions of the converted network
+     * @param quantizedNanos the time the converted network took
+     * @param quantizedBytes the memory taken by the converted network's parameters
+     * @param images the images both networks predicted
+     * @return the report
+     */
+    static QuantizationReport of(String format, NeuralNetwork network, Prediction expected, long floatNanos,
+                                 Prediction actual, long quantizedNanos, long quantizedBytes, List<Image> images) {
+        int floatCorrect = 0;
+        int quantizedCorrect = 0;
+        int agreed = 0;
+        for (int i = 0; i < images.size(); i++) {
+            int label = images.get(i).getLabel();
+            floatCorrect += expected.getLabel(i) == label ? 1 : 0;
+            quantizedCorrect += actual.getLabel(i) == label ? 1 : 0;
+            agreed += expected.getLabel(i) == actual.getLabel(i) ? 1 : 0;
+        }
+
+        long parameters = 0;
+        for (Layer layer : network._layers) {
+            for (double[] values : layer.getParameters()) {
+                parameters += values.length;
+            }
+        }
+
+        return new QuantizationReport(format, images.size(),
+                (float) floatCorrect / images.size(), (float) quantizedCorrect / images.size(),
+                (float) agreed / images.size(),
+                parameters * Double.BYTES, quantizedBytes,
+                floatNanos, quantizedNanos);
+    }
+
+    /**
+     * Returns the change in accuracy from converting, negative if the converted network does worse
+     * @return the converted accuracy minus the double accuracy
+     */
+    public float accuracyDelta() {
+        return quantizedAccuracy - floatAccuracy;
+    }
+
+    /**
+     * Returns how many times faster the converted network predicted
+     * @return the double time over the converted time
+     */
+    public double speedup() {
+        return quantizedNanos == 0 ? 0 : (double) floatNanos / quantizedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("double accuracy %.4f, %s accuracy %.4f, delta %+.4f, agreement %.4f over %d images%n"
+                        + "parameters %d bytes -> %d bytes, prediction %.1f ms -> %.1f ms (%.2fx)",
+                floatAccuracy, format, quantizedAccuracy, accuracyDelta(), agreement, images,
+                floatBytes, quantizedBytes, floatNanos / 1e6, quantizedNanos / 1e6, speedup());
+    }
+}
@@ -0,0 +1,480 @@
+package network;
+
+import data.Image;
+import data.Tensor;
+import layers.Activation;
+import layers.Convolution;
+import layers.ConvolutionMaxPooling;
+import layers.FullyConnected;
+import layers.Layer;
+import layers.MaxPooling;
+import layers.PoolingMode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A trained network converted to 8-bit integers for inference.
+ *
+ * Filters and weights are stored as int8 with one scale per filter or per output, and the values passed
+ * between layers are int8 with one scale per layer, calibrated from the range each layer sees on a sample of
+ * images. Products are summed in int32 and brought back to int8 for the next layer by a fixed-point multiply
+ * and shift, so everything up to the output layer runs in integer arithmetic. Only the outputs of the last
+ * layer are turned back into doubles, to apply its activation.
+ *
+ * The weights take an eighth of the memory of doubles. The network must end in its only fully connected
+ * layer, like every network the builder makes. Predicting only reads the quantized weights, so it is safe
+ * from many threads at once.
+ */
+public final class QuantizedNetwork {
+
+    private static final int QMAX = 127;
+
+    /**
+     * One layer of integer inference, reading int8 values and writing int8 values for the next layer
+     */
+    private interface Stage {
+
+        int getOutputSize();
+
+        void run(byte[] in, byte[] out);
+
+        long getParameterBytes();
+    }
+
+    private final int _inputSize;
+    private final double _inputScale;
+    private final List<Stage> _stages;
+    private final FullyConnectedStage _output;
+    private final int _maxSize;
+
+    private QuantizedNetwork(int inputSize, double inputScale, List<Stage> stages, FullyConnectedStage output) {
+        _inputSize = inputSize;
+        _inputScale = inputScale;
+        _stages = stages;
+        _output = output;
+
+        int maxSize = inputSize;
+        for (Stage stage : stages) {
+            maxSize = Math.max(maxSize, stage.getOutputSize());
+        }
+        _maxSize = maxSize;
+    }
+
+    /**
+     * Quantizes a trained network, calibrating the scale of every layer's values on a sample of images
+     * @param network the trained network, which is not changed
+     * @param calibration images like those the network will see, such as a few hundred training images
+     * @return the quantized network
+     */
+    public static QuantizedNetwork quantize(NeuralNetwork network, List<Image> calibration) {
+        if (calibration.isEmpty()) {
+            throw new IllegalArgumentException("No images to calibrate with");
+        }
+
+        double[][] first = calibration.get(0).getData();
+        int rows = first.length;
+        int cols = first[0].length;
+
+        // The float values every layer sees, computed one layer at a time
+        Tensor x = new Tensor(calibration.size(), 1, rows, cols);
+        double[] data = x.getData();
+        int i = 0;
+        for (Image image : calibration) {
+            for (double[] row : image.getData()) {
+                for (double value : row) {
+                    data[i++] = value / network.scaleFactor;
+                }
+            }
+        }
+
+        double scale = scaleOf(x);
+        double inputScale = scale * network.scaleFactor;
+        List<Stage> stages = new ArrayList<>();
+        FullyConnectedStage output = null;
+
+        for (int l = 0; l < network._layers.size(); l++) {
+            Layer layer = network._layers.get(l);
+            if (output != null) {
+                throw new IllegalArgumentException("Only a network ending in its one fully connected layer can be quantized");
+            }
+
+            if (layer instanceof Convolution convolution) {
+                Tensor y = convolution.convolutionForwardPass(x, null);
+                stages.add(new ConvolutionStage(convolution, scale, scaleOf(y)));
+                scale = scaleOf(y);
+                x = y;
+            } else if (layer instanceof ConvolutionMaxPooling fused) {
+                Tensor y = fused.getConvolution().convolutionForwardPass(x, null);
+                stages.add(new ConvolutionStage(fused.getConvolution(), scale, scaleOf(y)));
+                stages.add(new PoolingStage(fused.getPooling()));
+                scale = scaleOf(y);
+                x = fused.getPooling().maxPoolForwardPass(y, null);
+            } else if (layer instanceof MaxPooling pooling) {
+                // Pooling picks or averages values, so they keep the scale of its input
+                stages.add(new PoolingStage(pooling));
+                x = pooling.maxPoolForwardPass(x, null);
+            } else if (layer instanceof FullyConnected fullyConnected) {
+                output = new FullyConnectedStage(fullyConnected, scale);
+            } else {
+                throw new IllegalArgumentException("Cannot quantize a " + layer.getClass().getSimpleName() + " layer");
+            }
+        }
+
+        if (output == null) {
+            throw new IllegalArgumentException("Only a network ending in its one fully connected layer can be quantized");
+        }
+        return new QuantizedNetwork(rows * cols, inputScale, stages, output);
+    }
+
+    /**
+     * Guesses the labels of many images
+     * @param images the images to guess, with raw pixel values like those given to the float network
+     * @return the guessed labels and the dequantized output of the network for every image
+     */
+    public Prediction predict(List<Image> images) {
+        int classes = _output.getOutputSize();
+        int[] labels = new int[images.size()];
+        double[] scores = new double[images.size() * classes];
+
+        byte[] in = new byte[_maxSize];
+        byte[] out = new byte[_maxSize];
+
+        for (int n = 0; n < images.size(); n++) {
+            int i = 0;
+            for (double[] row : images.get(n).getData()) {
+                for (double value : row) {
+                    in[i++] = quantize(value / _inputScale);
+                }
+            }
+            if (i != _inputSize) {
+                throw new IllegalArgumentException("Expected images of " + _inputSize + " pixels, got " + i);
+            }
+
+            for (Stage stage : _stages) {
+                stage.run(in, out);
+                byte[] swap = in;
+                in = out;
+                out = swap;
+            }
+
+            _output.run(in, scores, n * classes);
+
+            int best = 0;
+            for (int c = 1; c < classes; c++) {
+                if (scores[n * classes + c] > scores[n * classes + best]) {
+                    best = c;
+                }
+            }
+            labels[n] = best;
+        }
+
+        return new Prediction(labels, scores, classes);
+    }
+
+    /**
+     * Tests the accuracy of the quantized network on a set of images
+     * @param images the images to test on
+     * @return the accuracy
+     */
+    public float test(List<Image> images) {
+        int[] labels = predict(images).getLabels();
+        int correct = 0;
+
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] == images.get(i).getLabel()) {
+                correct++;
+            }
+        }
+
+        return (float) correct / images.size();
+    }
+
+    /**
+     * Returns the memory taken by the quantized filters, weights, biases and scales
+     * @return the number of bytes
+     */
+    public long getParameterBytes() {
+        long bytes = _output.getParameterBytes();
+        for (Stage stage : _stages) {
+            bytes += stage.getParameterBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Compares the quantized network with the network it was made from on a set of images
+     * @param network the float network
+     * @param images the images to test on
+     * @return the accuracy, agreement, size and speed of both
+     */
+    public QuantizationReport compare(NeuralNetwork network, List<Image> images) {
+        long start = System.nanoTime();
+        Prediction expected = network.predict(images);
+        long floatNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        Prediction actual = predict(images);
+        long quantizedNanos = System.nanoTime() - start;
+
+        return QuantizationReport.of("int8", network, expected, floatNanos, actual, quantizedNanos,
+                getParameterBytes(), images);
+    }
+
+    /**
+     * Returns the scale that maps the largest magnitude in a tensor to 127
+     */
+    private static double scaleOf(Tensor tensor) {
+        double max = 0;
+        double[] data = tensor.getData();
+        for (int i = tensor.getOffset(); i < tensor.getOffset() + tensor.size(); i++) {
+            max = Math.max(max, Math.abs(data[i]));
+        }
+        return max == 0 ? 1 : max / QMAX;
+    }
+
+    /**
+     * Returns the scale that maps the largest magnitude in a range of an array to 127
+     */
+    private static double scaleOf(double[] values, int from, int to) {
+        double max = 0;
+        for (int i = from; i < to; i++) {
+            max = Math.max(max, Math.abs(values[i]));
+        }
+        return max == 0 ? 1 : max / QMAX;
+    }
+
+    private static byte quantize(double value) {
+        return (byte) Math.max(-QMAX, Math.min(QMAX, Math.round(value)));
+    }
+
+    /**
+     * A real factor below about 2^30 held as a 31-bit integer and a right shift, so an int32 sum can be
+     * rescaled with integer arithmetic alone: (sum * multiplier) >> shift, rounded to nearest
+     */
+    private record FixedPoint(int multiplier, int shift) {
+
+        static FixedPoint of(double factor) {
+            if (factor <= 0) {
+                return new FixedPoint(0, 1);
+            }
+
+            // factor * 2^shift lands in [2^30, 2^31), keeping 31 bits of precision
+            int shift = Math.min(62, 30 - Math.getExponent(factor));
+            if (shift < 1) {
+                throw new IllegalArgumentException("Rescale factor " + factor + " is too large");
+            }
+            long multiplier = Math.round(Math.scalb(factor, shift));
+            return new FixedPoint((int) Math.min(Integer.MAX_VALUE, multiplier), shift);
+        }
+
+        byte apply(int sum) {
+            long scaled = ((long) sum * multiplier + (1L << (shift - 1))) >> shift;
+            return (byte) Math.max(-QMAX, Math.min(QMAX, scaled));
+        }
+    }
+
+    /**
+     * A convolution: every input map is convolved with every int8 filter, as {@link Convolution} does
+     */
+    private static final class ConvolutionStage implements Stage {
+
+        private final byte[] _filters;
+        private final FixedPoint[] _rescale;
+        private final int _numFilters;
+        private final int _filterSize;
+        private final int _stepSize;
+        private final int _inLength;
+        private final int _inCols;
+        private final int _inSize;
+        private final int _outRows;
+        private final int _outCols;
+
+        ConvolutionStage(Convolution convolution, double inputScale, double outputScale) {
+            double[] filters = convolution.getParameters()[0];
+            _numFilters = convolution.getNumFilters();
+            _filterSize = convolution.getFilterSize();
+            _stepSize = convolution.getStepSize();
+            _inLength = convolution.getInputLength();
+            _inCols = convolution.getInputCols();
+            _inSize = convolution.getInputRows() * _inCols;
+            _outRows = convolution.getOutputRows();
+            _outCols = convolution.getOutputCols();
+
+            int filterElements = _filterSize * _filterSize;
+            _filters = new byte[filters.length];
+            _rescale = new FixedPoint[_numFilters];
+
+            for (int f = 0; f < _numFilters; f++) {
+                double filterScale = scaleOf(filters, f * filterElements, (f + 1) * filterElements);
+                for (int k = f * filterElements; k < (f + 1) * filterElements; k++) {
+                    _filters[k] = quantize(filters[k] / filterScale);
+                }
+                _rescale[f] = FixedPoint.of(inputScale * filterScale / outputScale);
+            }
+        }
+
+        @Override
+        public int getOutputSize() {
+            return _inLength * _numFilters * _outRows * _outCols;
+        }
+
+        @Override
+        public void run(byte[] in, byte[] out) {
+            int filterElements = _filterSize * _filterSize;
+            int o = 0;
+
+            for (int i = 0; i < _inLength; i++) {
+                int inOffset = i * _inSize;
+
+                for (int f = 0; f < _numFilters; f++) {
+                    int fOffset = f * filterElements;
+                    FixedPoint rescale = _rescale[f];
+
+                    for (int r = 0; r < _outRows; r++) {
+                        for (int c = 0; c < _outCols; c++) {
+                            int sum = 0;
+                            int corner = inOffset + r * _stepSize * _inCols + c * _stepSize;
+
+                            for (int x = 0; x < _filterSize; x++) {
+                                int inputRow = corner + x * _inCols;
+                                int filterRow = fOffset + x * _filterSize;
+                                for (int y = 0; y < _filterSize; y++) {
+                                    sum += _filters[filterRow + y] * in[inputRow + y];
+                                }
+                            }
+
+                            out[o++] = rescale.apply(sum);
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public long getParameterBytes() {
+            return _filters.length + (long) _rescale.length * 2 * Integer.BYTES;
+        }
+    }
+
+    /**
+     * Max or average pooling, which needs no rescaling since its outputs are on the scale of its inputs
+     */
+    private static final class PoolingStage implements Stage {
+
+        private final PoolingMode _mode;
+        private final int _windowSize;
+        private final int _stepSize;
+        private final int _length;
+        private final int _inRows;
+        private final int _inCols;
+        private final int _outRows;
+        private final int _outCols;
+
+        PoolingStage(MaxPooling pooling) {
+            _mode = pooling.getMode();
+            _windowSize = pooling.getWindowSize();
+            _stepSize = pooling.getStepSize();
+            _length = pooling.getInputLength();
+            _inRows = pooling.getInputRows();
+            _inCols = pooling.getInputCols();
+            _outRows = pooling.getOutputRows();
+            _outCols = pooling.getOutputCols();
+        }
+
+        @Override
+        public int getOutputSize() {
+            return _length * _outRows * _outCols;
+        }
+
+        @Override
+        public void run(byte[] in, byte[] out) {
+            int count = _windowSize * _windowSize;
+            int o = 0;
+
+            for (int l = 0; l < _length; l++) {
+                int inOffset = l * _inRows * _inCols;
+
+                for (int r = 0; r < _outRows; r++) {
+                    for (int c = 0; c < _outCols; c++) {
+                        int corner = inOffset + r * _stepSize * _inCols + c * _stepSize;
+                        int max = Integer.MIN_VALUE;
+                        int sum = 0;
+
+                        for (int x = 0; x < _windowSize; x++) {
+                            for (int y = 0; y < _windowSize; y++) {
+                                int value = in[corner + x * _inCols + y];
+                                max = Math.max(max, value);
+                                sum += value;
+                            }
+                        }
+
+                        out[o++] = (byte) (_mode == PoolingMode.MAX ? max : Math.round((float) sum / count));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public long getParameterBytes() {
+            return 0;
+        }
+    }
+
+    /**
+     * The fully connected output layer: int8 weights with a scale per output, and biases in int32 on the
+     * scale of each output's sum. The sums are turned back into doubles to apply the activation.
+     */
+    private static final class FullyConnectedStage {
+
+        private final byte[] _weights;
+        private final int[] _biases;
+        private final double[] _dequantize;
+        private final int _inLength;
+        private final int _outLength;
+        private final Activation _activation;
+
+        FullyConnectedStage(FullyConnected layer, double inputScale) {
+            double[][] parameters = layer.getParameters();
+            double[] weights = parameters[0];
+            _inLength = layer.getInputLength();
+            _outLength = layer.getOutputElements();
+            _activation = layer.getActivation();
+
+            _weights = new byte[weights.length];
+            _biases = new int[_outLength];
+            _dequantize = new double[_outLength];
+
+            for (int o = 0; o < _outLength; o++) {
+                double weightScale = scaleOf(weights, o * _inLength, (o + 1) * _inLength);
+                for (int k = o * _inLength; k < (o + 1) * _inLength; k++) {
+                    _weights[k] = quantize(weights[k] / weightScale);
+                }
+
+                _dequantize[o] = inputScale * weightScale;
+                if (layer.hasBias()) {
+                    _biases[o] = (int) Math.round(parameters[1][o] / _dequantize[o]);
+                }
+            }
+        }
+
+        int getOutputSize() {
+            return _outLength;
+        }
+
+        void run(byte[] in, double[] scores, int offset) {
+            for (int o = 0; o < _outLength; o++) {
+                int sum = _biases[o];
+                int row = o * _inLength;
+                for (int k = 0; k < _inLength; k++) {
+                    sum += _weights[row + k] * in[k];
+                }
+                scores[offset + o] = _activation.apply(sum * _dequantize[o]);
+            }
+        }
+
+        long getParameterBytes() {
+            return _weights.length + (long) _outLength * (Integer.BYTES + Double.BYTES);
+        }
+    }
+}
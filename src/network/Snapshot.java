@@ -0,0 +1,94 @@
+package network;
+
+import java.io.IOException;
+
+/**
+ * A copy of the trained weights of a network at one point of its training, together with the
+ * number of epochs it had trained. The copy never changes, so it can be restored into the network
+ * later or written out on another thread while the network carries on training.
+ */
+public final class Snapshot {
+
+    private final NeuralNetwork _network;
+
+    // Copies of the parameter arrays of every layer, as returned by Layer.getParameters()
+    private final double[][][] _parameters;
+    private final int _epochs;
+
+    Snapshot(NeuralNetwork network) {
+        _network = network;
+        _parameters = new double[network._layers.size()][][];
+
+        for (int i = 0; i < _parameters.length; i++) {
+            double[][] parameters = network._layers.get(i).getParameters();
+            _parameters[i] = new double[parameters.length][];
+
+            for (int p = 0; p < parameters.length; p++) {
+                _parameters[i][p] = parameters[p].clone();
+            }
+        }
+        _epochs = network.getEpochs();
+    }
+
+    /**
+     * Writes the copy back into a network
+     * @param network the network the snapshot was taken of, or one with the same layers
+     */
+    void copyTo(NeuralNetwork network) {
+        checkNetwork(network);
+
+        for (int i = 0; i < _parameters.length; i++) {
+            double[][] parameters = network._layers.get(i).getParameters();
+
+            for (int p = 0; p < parameters.length; p++) {
+                System.arraycopy(_parameters[i][p], 0, parameters[p], 0, parameters[p].length);
+            }
+        }
+        network.setEpochs(_epochs);
+        network.weightsChanged();
+    }
+
+    private void checkNetwork(NeuralNetwork network) {
+        if (network == _network) {
+            return;
+        }
+
+        boolean matches = network._layers.size() == _parameters.length;
+        for (int i = 0; matches && i < _parameters.length; i++) {
+            double[][] parameters = network._layers.get(i).getParameters();
+            matches = parameters.length == _parameters[i].length;
+
+            for (int p = 0; matches && p < parameters.length; p++) {
+                matches = parameters[p].length == _parameters[i][p].length;
+            }
+        }
+
+        if (!matches) {
+            throw new IllegalArgumentException("Snapshot was taken of a network with different layers");
+        }
+    }
+
+    /**
+     * Saves the copy in the checkpoint format, see {@link Checkpoint}
+     * @param path the path of the file to write
+     */
+    public void save(String path) throws IOException {
+        Checkpoint.save(this, path);
+    }
+
+    /**
+     * Returns the number of epochs the network had trained when the snapshot was taken
+     * @return the number of epochs
+     */
+    public int getEpochs() {
+        return _epochs;
+    }
+
+    NeuralNetwork getNetwork() {
+        return _network;
+    }
+
+    double[][] getParameters(int index) {
+        return _parameters[index];
+    }
+}
@@ -0,0 +1,71 @@
+package search;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * One configuration drawn from a {@link SearchSpace}: a value for every hyperparameter of the space, by name
+ */
+public final class Hyperparameters {
+
+    /**
+     * No values at all, so every lookup with a default returns the default
+     */
+    public static final Hyperparameters NONE = new Hyperparameters(Map.of());
+
+    private final Map<String, Double> _values;
+
+    Hyperparameters(Map<String, Double> values) {
+        _values = Collections.unmodifiableMap(new LinkedHashMap<>(values));
+    }
+
+    /**
+     * Returns the value of a hyperparameter
+     * @param name the name of the hyperparameter
+     * @return the value
+     */
+    public double get(String name) {
+        Double value = _values.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("No hyperparameter named " + name);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the value of a hyperparameter, or a default if the search space does not vary it
+     * @param name the name of the hyperparameter
+     * @param defaultValue the value to return if there is no hyperparameter of that name
+     * @return the value
+     */
+    public double get(String name, double defaultValue) {
+        return _values.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * Returns the value of a whole-number hyperparameter, rounded to the nearest integer
+     * @param name the name of the hyperparameter
+     * @param defaultValue the value to return if there is no hyperparameter of that name
+     * @return the value
+     */
+    public int getInt(String name, int defaultValue) {
+        return (int) Math.round(get(name, defaultValue));
+    }
+
+    /**
+     * Returns the values of every hyperparameter
+     * @return the values by name, in the order they were added to the space
+     */
+    public Map<String, Double> getValues() {
+        return _values;
+    }
+
+    @Override
+    public String toString() {
+        return _values.entrySet().stream()
+                .map(entry -> entry.getKey() + "=" + entry.getValue())
+                .collect(Collectors.joining(", "));
+    }
+}
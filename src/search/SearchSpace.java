@@ -0,0 +1,136 @@
+package search;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The hyperparameters to search over and the values each of them may take.
+ *
+ * A hyperparameter is either a choice between listed values or a continuous range. Every combination of
+ * the choices can be listed with {@link #grid()}, and configurations can be drawn at random, from ranges
+ * as well as choices, with {@link #sample}.
+ */
+public class SearchSpace {
+
+    private record Dimension(double[] values, double min, double max, boolean logarithmic) {
+
+        boolean isChoice() {
+            return values != null;
+        }
+
+        double sample(Random random) {
+            if (isChoice()) {
+                return values[random.nextInt(values.length)];
+            }
+            if (logarithmic) {
+                return Math.exp(Math.log(min) + random.nextDouble() * (Math.log(max) - Math.log(min)));
+            }
+            return min + random.nextDouble() * (max - min);
+        }
+    }
+
+    private final Map<String, Dimension> _dimensions = new LinkedHashMap<>();
+
+    /**
+     * Adds a hyperparameter that takes one of a list of values
+     * @param name the name of the hyperparameter
+     * @param values the values it may take
+     * @return this space
+     */
+    public SearchSpace addChoice(String name, double... values) {
+        if (values.length == 0) {
+            throw new IllegalArgumentException("No values for " + name);
+        }
+        return add(name, new Dimension(values.clone(), 0, 0, false));
+    }
+
+    /**
+     * Adds a hyperparameter that takes any value in a range, drawn evenly
+     * @param name the name of the hyperparameter
+     * @param min the smallest value
+     * @param max the largest value
+     * @return this space
+     */
+    public SearchSpace addRange(String name, double min, double max) {
+        if (min > max) {
+            throw new IllegalArgumentException("Range of " + name + " is empty: " + min + " to " + max);
+        }
+        return add(name, new Dimension(null, min, max, false));
+    }
+
+    /**
+     * Adds a hyperparameter that takes any value in a range, drawn evenly on a log scale, which suits
+     * values such as learning rates that matter by their order of magnitude
+     * @param name the name of the hyperparameter
+     * @param min the smallest value, above 0
+     * @param max the largest value
+     * @return this space
+     */
+    public SearchSpace addLogRange(String name, double min, double max) {
+        if (min <= 0 || min > max) {
+            throw new IllegalArgumentException("Log range of " + name + " must be positive and not empty: " + min + " to " + max);
+        }
+        return add(name, new Dimension(null, min, max, true));
+    }
+
+    private SearchSpace add(String name, Dimension dimension) {
+        if (_dimensions.putIfAbsent(name, dimension) != null) {
+            throw new IllegalArgumentException("Hyperparameter " + name + " was already added");
+        }
+        return this;
+    }
+
+    /**
+     * Lists every combination of the choices
+     * @return the configurations, in a fixed order
+     */
+    public List<Hyperparameters> grid() {
+        List<Map<String, Double>> combinations = new ArrayList<>();
+        combinations.add(new LinkedHashMap<>());
+
+        for (Map.Entry<String, Dimension> entry : _dimensions.entrySet()) {
+            if (!entry.getValue().isChoice()) {
+                throw new IllegalStateException("Hyperparameter " + entry.getKey() + " is a range, which a grid cannot list");
+            }
+
+            List<Map<String, Double>> extended = new ArrayList<>();
+            for (Map<String, Double> combination : combinations) {
+                for (double value : entry.getValue().values()) {
+                    Map<String, Double> next = new LinkedHashMap<>(combination);
+                    next.put(entry.getKey(), value);
+                    extended.add(next);
+                }
+            }
+            combinations = extended;
+        }
+
+        List<Hyperparameters> grid = new ArrayList<>(combinations.size());
+        for (Map<String, Double> combination : combinations) {
+            grid.add(new Hyperparameters(combination));
+        }
+        return grid;
+    }
+
+    /**
+     * Draws configurations at random
+     * @param count the number of configurations
+     * @param seed the seed of the draws, so a search can be repeated
+     * @return the configurations
+     */
+    public List<Hyperparameters> sample(int count, long seed) {
+        Random random = new Random(seed);
+        List<Hyperparameters> samples = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            Map<String, Double> values = new LinkedHashMap<>();
+            for (Map.Entry<String, Dimension> entry : _dimensions.entrySet()) {
+                values.put(entry.getKey(), entry.getValue().sample(random));
+            }
+            samples.add(new Hyperparameters(values));
+        }
+        return samples;
+    }
+}
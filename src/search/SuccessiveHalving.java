@@ -0,0 +1,191 @@
+package search;
+
+import data.Image;
+import helpers.Augmentation;
+import helpers.BatchPipeline;
+import network.NeuralNetwork;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Searches for the best of many configurations with successive halving.
+ *
+ * Every configuration starts with a small budget of epochs. After each round the configurations are
+ * tested and only the best 1/reduction of them carry on, with a budget of epochs reduction times larger,
+ * until the budget reaches the most epochs allowed. Weak configurations are dropped after
+ * a few epochs, so most of the training time goes to the promising ones. A configuration that carries on
+ * keeps its network and continues training it rather than starting again.
+ *
+ * The configurations of a round train at the same time on a pool of threads, each on its own network and
+ * batch pipeline; all of them read the same training and test images.
+ */
+public class SuccessiveHalving {
+
+    private final Function<Hyperparameters, NeuralNetwork> _networks;
+    private final List<Image> _imagesTrain;
+    private final List<Image> _imagesTest;
+
+    private int _minEpochs = 1;
+    private int _maxEpochs = 27;
+    private int _reduction = 3;
+    private int _parallelism = Runtime.getRuntime().availableProcessors();
+    private int _batchSize = 64;
+    private long _seed;
+    private Supplier<Augmentation> _augmentation = () -> null;
+
+    /**
+     * @param networks builds an untrained network for a configuration
+     * @param imagesTrain the images to train on
+     * @param imagesTest the images the configurations are ranked by
+     */
+    public SuccessiveHalving(Function<Hyperparameters, NeuralNetwork> networks, List<Image> imagesTrain, List<Image> imagesTest) {
+        _networks = networks;
+        _imagesTrain = imagesTrain;
+        _imagesTest = imagesTest;
+    }
+
+    /**
+     * Sets the budget of epochs of the first round
+     * @param minEpochs the number of epochs
+     */
+    public void setMinEpochs(int minEpochs) {
+        if (minEpochs < 1) {
+            throw new IllegalArgumentException("Min epochs must be at least 1, was " + minEpochs);
+        }
+        _minEpochs = minEpochs;
+    }
+
+    /**
+     * Sets the most epochs any configuration trains
+     * @param maxEpochs the number of epochs
+     */
+    public void setMaxEpochs(int maxEpochs) {
+        if (maxEpochs < 1) {
+            throw new IllegalArgumentException("Max epochs must be at least 1, was " + maxEpochs);
+        }
+        _maxEpochs = maxEpochs;
+    }
+
+    /**
+     * Sets the factor by which each round cuts the configurations and grows the budget
+     * @param reduction the factor, at least 2
+     */
+    public void setReduction(int reduction) {
+        if (reduction < 2) {
+            throw new IllegalArgumentException("Reduction must be at least 2, was " + reduction);
+        }
+        _reduction = reduction;
+    }
+
+    /**
+     * Sets the number of configurations trained at the same time
+     * @param parallelism the number of threads
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1, was " + parallelism);
+        }
+        _parallelism = parallelism;
+    }
+
+    /**
+     * Sets the number of images in each batch of a configuration's pipeline
+     * @param batchSize the number of images
+     */
+    public void setBatchSize(int batchSize) {
+        _batchSize = batchSize;
+    }
+
+    /**
+     * Sets the seed of the shuffles and augmentations; every configuration sees the same order of images
+     * @param seed the seed
+     */
+    public void setSeed(long seed) {
+        _seed = seed;
+    }
+
+    /**
+     * Sets the augmentation of the training images. Augmentations may keep scratch buffers, so each
+     * configuration gets its own.
+     * @param augmentation creates the augmentation of one configuration, which may be null
+     */
+    public void setAugmentation(Supplier<Augmentation> augmentation) {
+        _augmentation = augmentation;
+    }
+
+    /**
+     * Runs the search
+     * @param configurations the configurations to compare
+     * @return every trial, best first: those that lasted longest come first, and then those with the best accuracy
+     */
+    public List<Trial> run(List<Hyperparameters> configurations) throws InterruptedException {
+        if (configurations.isEmpty()) {
+            throw new IllegalArgumentException("No configurations to search");
+        }
+
+        List<Trial> trials = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(_parallelism, configurations.size()));
+
+        try {
+            for (Hyperparameters configuration : configurations) {
+                BatchPipeline pipeline = new BatchPipeline(_imagesTrain, _batchSize, _seed, _augmentation.get());
+                trials.add(new Trial(configuration, _networks.apply(configuration), pipeline));
+            }
+
+            List<Trial> alive = new ArrayList<>(trials);
+            int budget = Math.min(_minEpochs, _maxEpochs);
+
+            while (true) {
+                trainAll(executor, alive, budget);
+                alive.sort(Comparator.comparingDouble(Trial::getAccuracy).reversed());
+
+                if (budget >= _maxEpochs) {
+                    break;
+                }
+
+                // The last configuration left trains on to the full budget
+                int survivors = Math.max(1, alive.size() / _reduction);
+
+                for (Trial pruned : alive.subList(survivors, alive.size())) {
+                    pruned.stop();
+                }
+                alive = new ArrayList<>(alive.subList(0, survivors));
+                budget = (int) Math.min((long) budget * _reduction, _maxEpochs);
+            }
+        } finally {
+            executor.shutdownNow();
+            for (Trial trial : trials) {
+                trial.stop();
+            }
+        }
+
+        trials.sort(Comparator.comparingInt(Trial::getEpochs).thenComparingDouble(Trial::getAccuracy).reversed());
+        return trials;
+    }
+
+    /**
+     * Trains every trial of a round up to the budget, in parallel, and waits for all of them
+     */
+    private void trainAll(ExecutorService executor, List<Trial> trials, int budget) throws InterruptedException {
+        List<Future<?>> results = new ArrayList<>(trials.size());
+        for (Trial trial : trials) {
+            results.add(executor.submit(() -> trial.train(budget, _imagesTest)));
+        }
+
+        try {
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Trial failed", e.getCause());
+        }
+    }
+}
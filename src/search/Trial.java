@@ -0,0 +1,77 @@
+package search;
+
+import data.Image;
+import helpers.BatchPipeline;
+import network.NeuralNetwork;
+
+import java.util.List;
+
+/**
+ * One configuration under search: its network, how long it has trained and how well it did when last tested
+ */
+public final class Trial {
+
+    private final Hyperparameters _hyperparameters;
+    private final NeuralNetwork _network;
+    private BatchPipeline _pipeline;
+
+    private int _epochs;
+    private float _accuracy;
+
+    Trial(Hyperparameters hyperparameters, NeuralNetwork network, BatchPipeline pipeline) {
+        _hyperparameters = hyperparameters;
+        _network = network;
+        _pipeline = pipeline;
+    }
+
+    /**
+     * Trains the network until it has trained a number of epochs, testing it after the last one
+     */
+    void train(int epochs, List<Image> imagesTest) {
+        for (; _epochs < epochs; _epochs++) {
+            _network.train(_epochs, _pipeline);
+        }
+
+        _accuracy = _network.test(imagesTest);
+    }
+
+    /**
+     * Stops the trial's batch pipeline and closes its network; the network is kept so it can still be inspected and used
+     */
+    void stop() {
+        if (_pipeline != null) {
+            _pipeline.close();
+            _pipeline = null;
+            _network.close();
+        }
+    }
+
+    public Hyperparameters getHyperparameters() {
+        return _hyperparameters;
+    }
+
+    public NeuralNetwork getNetwork() {
+        return _network;
+    }
+
+    /**
+     * Returns the number of epochs the trial trained before it finished or was pruned
+     * @return the number of epochs
+     */
+    public int getEpochs() {
+        return _epochs;
+    }
+
+    /**
+     * Returns the accuracy on the test images after the last epoch trained
+     * @return the accuracy
+     */
+    public float getAccuracy() {
+        return _accuracy;
+    }
+
+    @Override
+    public String toString() {
+        return _hyperparameters + ": accuracy " + _accuracy + " after " + _epochs + " epochs";
+    }
+}
@@ -0,0 +1,9 @@
+package server;
+
+/**
+ * The network's answer for one image
+ * @param label the guessed label
+ * @param scores the output of the network for the image
+ */
+public record Classification(int label, double[] scores) {
+}
@@ -0,0 +1,194 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import helpers.Normalization;
+import network.NeuralNetwork;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A small HTTP server that classifies digits with a trained network.
+ *
+ * POST /predict with the pixel values of one image, row by row, separated by commas or spaces and optionally
+ * wrapped in square brackets, answers with a JSON object holding the guessed label and the scores of every
+ * class. The values are the raw counts of the data files, from 0 to 16, and are normalized with the statistics the
+ * network recorded for its training images before they reach it, so the same grid always gives the same input
+ * and can be answered from the prediction cache. Every request is handled on its own thread
+ * and waits while a {@link MicroBatcher} gathers it with other requests into one pass through the network.
+ */
+public class InferenceServer implements AutoCloseable {
+
+    private final HttpServer _server;
+    private final ExecutorService _executor;
+    private final MicroBatcher _batcher;
+    private final int _length;
+    private final Normalization _normalization;
+
+    /**
+     * Creates a server; call {@link #start()} to start accepting requests
+     * @param network the network to classify with, which must record how its training images were normalized
+     * @param rows the number of rows in each image
+     * @param cols the number of columns in each image
+     * @param port the port to listen on, or 0 for any free port
+     * @param maxBatchSize the most requests run through the network at once
+     * @param maxWaitMicros the longest a request waits for others to batch with, in microseconds
+     */
+    public InferenceServer(NeuralNetwork network, int rows, int cols, int port, int maxBatchSize, long maxWaitMicros) throws IOException {
+        _normalization = network.getNormalization();
+        if (_normalization == null) {
+            throw new IllegalArgumentException("The network does not record how its training images were normalized");
+        }
+
+        _length = rows * cols;
+        _batcher = new MicroBatcher(network, rows, cols, maxBatchSize, maxWaitMicros);
+        _executor = createExecutor();
+
+        _server = HttpServer.create(new InetSocketAddress(port), 0);
+        _server.createContext("/predict", this::handle);
+        _server.setExecutor(_executor);
+    }
+
+    /**
+     * Creates an executor that runs every request on a new virtual thread. Virtual threads came with Java 21,
+     * so the factory is looked up at run time; on older runtimes a cached pool gives each request its own
+     * platform thread instead.
+     */
+    private static ExecutorService createExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "inference-request");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public void start() {
+        _server.start();
+    }
+
+    /**
+     * Returns the port the server listens on, which is useful when it was created with port 0
+     * @return the port
+     */
+    public int getPort() {
+        return _server.getAddress().getPort();
+    }
+
+    public MicroBatcher getBatcher() {
+        return _batcher;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                respond(exchange, 405, error("Use POST"));
+                return;
+            }
+
+            double[] pixels;
+            try {
+                pixels = parse(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.US_ASCII));
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, error(e.getMessage()));
+                return;
+            }
+
+            try {
+                respond(exchange, 200, toJson(_batcher.submit(pixels).get()));
+            } catch (ExecutionException e) {
+                respond(exchange, 503, error("Could not classify the image"));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                respond(exchange, 503, error("Server is stopping"));
+            }
+        }
+    }
+
+    /**
+     * Reads the raw pixel values of one image from a request body and normalizes them
+     */
+    private double[] parse(String body) {
+        String values = body.strip();
+        if (values.startsWith("[") && values.endsWith("]")) {
+            values = values.substring(1, values.length() - 1).strip();
+        }
+
+        String[] items = values.isEmpty() ? new String[0] : values.split("[,\\s]+");
+        if (items.length != _length) {
+            throw new IllegalArgumentException("Expected " + _length + " pixel values, got " + items.length);
+        }
+
+        double[] pixels = new double[_length];
+        for (int i = 0; i < _length; i++) {
+            try {
+                pixels[i] = _normalization.apply(Double.parseDouble(items[i]));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Pixel value " + i + " is not a number");
+            }
+        }
+        return pixels;
+    }
+
+    private static String toJson(Classification classification) {
+        StringBuilder json = new StringBuilder("{\"label\":").append(classification.label()).append(",\"scores\":[");
+        double[] scores = classification.scores();
+        for (int i = 0; i < scores.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(scores[i]);
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Builds the JSON body of an error response, escaping the message as a JSON string
+     */
+    private static String error(String message) {
+        StringBuilder json = new StringBuilder("{\"error\":\"");
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append("\"}").toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Stops accepting requests, lets those in flight finish for up to a second, then stops the batcher.
+     * An interrupt while waiting for the batcher is kept on the calling thread, see {@link MicroBatcher#close()}.
+     */
+    @Override
+    public void close() {
+        _server.stop(1);
+        _batcher.close();
+        _executor.shutdown();
+    }
+}
@@ -0,0 +1,166 @@
+package server;
+
+import network.NeuralNetwork;
+import network.Prediction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers images submitted from many threads into batches and classifies each batch with one pass through
+ * the network.
+ *
+ * A single dispatcher thread takes the first waiting image, then waits at most the maximum wait for more,
+ * up to the maximum batch size, before running the batch. Under light load an image waits no longer than
+ * the maximum wait; under heavy load batches fill at once and the network runs with the throughput of
+ * batched inference. Only the dispatcher thread touches the network, which must not be trained meanwhile.
+ */
+public class MicroBatcher implements AutoCloseable {
+
+    private record Request(double[] pixels, CompletableFuture<Classification> result) {
+    }
+
+    private final NeuralNetwork _network;
+    private final int _rows;
+    private final int _cols;
+    private final int _maxBatchSize;
+    private final long _maxWaitNanos;
+
+    private final BlockingQueue<Request> _queue = new LinkedBlockingQueue<>();
+    private final Thread _dispatcher;
+    private volatile boolean _closed;
+
+    // Number of batches run and images classified, for the average batch size
+    private volatile long _batches;
+    private volatile long _images;
+
+    /**
+     * Creates a batcher and starts its dispatcher thread
+     * @param network the network to classify with
+     * @param rows the number of rows in each image
+     * @param cols the number of columns in each image
+     * @param maxBatchSize the most images run through the network at once
+     * @param maxWaitMicros the longest the first image of a batch waits for others, in microseconds
+     */
+    public MicroBatcher(NeuralNetwork network, int rows, int cols, int maxBatchSize, long maxWaitMicros) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Max batch size must be at least 1, was " + maxBatchSize);
+        }
+        if (maxWaitMicros < 0) {
+            throw new IllegalArgumentException("Max wait must be non-negative, was " + maxWaitMicros);
+        }
+
+        _network = network;
+        _rows = rows;
+        _cols = cols;
+        _maxBatchSize = maxBatchSize;
+        _maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+
+        _dispatcher = new Thread(this::dispatch, "micro-batcher");
+        _dispatcher.setDaemon(true);
+        _dispatcher.start();
+    }
+
+    /**
+     * Queues an image to be classified in the next batch
+     * @param pixels the pixel values of the image, row by row, in the form the network was trained on
+     * @return the classification, completed once the image's batch has run
+     */
+    public CompletableFuture<Classification> submit(double[] pixels) {
+        if (pixels.length != _rows * _cols) {
+            throw new IllegalArgumentException("Expected " + _rows * _cols + " pixel values, got " + pixels.length);
+        }
+
+        CompletableFuture<Classification> result = new CompletableFuture<>();
+        Request request = new Request(pixels, result);
+        _queue.add(request);
+
+        // Closed meanwhile: the dispatcher may already have failed what was queued, so fail this one here
+        if (_closed && _queue.remove(request)) {
+            result.completeExceptionally(new IllegalStateException("Batcher is closed"));
+        }
+        return result;
+    }
+
+    /**
+     * Runs batches until the batcher is closed
+     */
+    private void dispatch() {
+        List<Request> batch = new ArrayList<>(_maxBatchSize);
+
+        try {
+            while (!_closed) {
+                batch.add(_queue.take());
+
+                long deadline = System.nanoTime() + _maxWaitNanos;
+                while (batch.size() < _maxBatchSize) {
+                    Request next = _queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                run(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        } finally {
+            IllegalStateException closed = new IllegalStateException("Batcher is closed");
+            batch.forEach(request -> request.result().completeExceptionally(closed));
+            _queue.forEach(request -> request.result().completeExceptionally(closed));
+        }
+    }
+
+    /**
+     * Classifies a batch in one pass and completes the result of every image in it
+     */
+    private void run(List<Request> batch) {
+        int length = _rows * _cols;
+        double[] pixels = new double[batch.size() * length];
+        for (int i = 0; i < batch.size(); i++) {
+            System.arraycopy(batch.get(i).pixels(), 0, pixels, i * length, length);
+        }
+
+        try {
+            Prediction prediction = _network.predict(pixels, _rows, _cols);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result().complete(new Classification(prediction.getLabel(i), prediction.getScores(i)));
+            }
+        } catch (RuntimeException e) {
+            batch.forEach(request -> request.result().completeExceptionally(e));
+        }
+
+        _batches++;
+        _images += batch.size();
+    }
+
+    /**
+     * Returns the average number of images in the batches run so far
+     * @return the average batch size, or 0 if no batch has run
+     */
+    public double getAverageBatchSize() {
+        long batches = _batches;
+        return batches == 0 ? 0 : (double) _images / batches;
+    }
+
+    /**
+     * Stops the dispatcher and waits for it to finish; images still waiting fail with an {@link IllegalStateException}.
+     * If the calling thread is interrupted while waiting, it stops waiting and its interrupt flag is set again.
+     */
+    @Override
+    public void close() {
+        _closed = true;
+        _dispatcher.interrupt();
+        try {
+            _dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}